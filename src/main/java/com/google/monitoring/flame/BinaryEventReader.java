@@ -0,0 +1,202 @@
+package com.google.monitoring.flame;
+
+import com.google.monitoring.runtime.instrumentation.events.BinaryEventFormat;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the agent's binary output format (see BinaryEventFormat) one EVENT or META record at a time,
+ * keeping the string and stack definitions it passes along the way.
+ *
+ * A file that ends in the middle of a record, like one whose JVM was killed, is read up to the last
+ * complete record.
+ */
+class BinaryEventReader {
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private final List<String> stacks = new ArrayList<>();
+    private final int[] position = new int[1];
+    private byte[] payload = new byte[256];
+    private int payloadLength;
+    private boolean truncated = false;
+
+    // The current record
+    private int type;
+    private int stackId;
+    private int stringId;
+    private long value;
+
+    /**
+     * @param in a stream positioned at the start of the file
+     * @throws IOException if the stream doesn't start with the binary format's header
+     */
+    BinaryEventReader(final InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        final byte[] magic = new byte[BinaryEventFormat.MAGIC.length];
+        this.in.readFully(magic);
+        final int version = this.in.read();
+        if (!Arrays.equals(magic, BinaryEventFormat.MAGIC) || version < 1 || version > BinaryEventFormat.VERSION){
+            throw new IOException("Not a supported binary flame file");
+        }
+    }
+
+    /**
+     * Check whether a file starts with the binary format's magic bytes.
+     *
+     * @param start the first bytes of the file
+     * @param length how many of them were read
+     * @return true if it's a binary file
+     */
+    static boolean isBinary(final byte[] start, final int length){
+        if (length < BinaryEventFormat.MAGIC.length){
+            return false;
+        }
+        for (int i = 0; i < BinaryEventFormat.MAGIC.length; i++){
+            if (start[i] != BinaryEventFormat.MAGIC[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move to the next EVENT or META record.
+     *
+     * @return false at the end of the file
+     * @throws IOException if the stream fails or the file is malformed
+     */
+    boolean next() throws IOException {
+        for (;;){
+            final int recordType = in.read();
+            if (recordType < 0){
+                return false;
+            }
+            if (recordType == BinaryEventFormat.PADDING){
+                continue;
+            }
+            if (!readPayload()){
+                truncated = true;
+                return false;
+            }
+
+            position[0] = 0;
+            switch (recordType){
+                case BinaryEventFormat.STRING:
+                    final int id = readInt();
+                    set(strings, id, new String(payload, position[0], payloadLength - position[0], StandardCharsets.UTF_8));
+                    break;
+                case BinaryEventFormat.STACK:
+                    final int stack = readInt();
+                    final int frames = readInt();
+                    final StringBuilder builder = new StringBuilder();
+                    for (int i = 0; i < frames; i++){
+                        builder.append(string(readInt())).append(';');
+                    }
+                    set(stacks, stack, builder.toString());
+                    break;
+                case BinaryEventFormat.EVENT:
+                    type = recordType;
+                    stackId = readInt();
+                    stringId = readInt();
+                    value = BinaryEventFormat.readVarint(payload, position);
+                    return true;
+                case BinaryEventFormat.META:
+                    type = recordType;
+                    stringId = readInt();
+                    value = BinaryEventFormat.readVarint(payload, position);
+                    return true;
+                default:
+                    // A record type from a newer version; its length lets us skip it
+                    break;
+            }
+        }
+    }
+
+    boolean isEvent(){
+        return type == BinaryEventFormat.EVENT;
+    }
+
+    /**
+     * @return the current event's stack id
+     */
+    int stackId(){
+        return stackId;
+    }
+
+    /**
+     * @return the string id of the current event's object type, or of the current meta record's name
+     */
+    int stringId(){
+        return stringId;
+    }
+
+    /**
+     * @return the current event's size, or the current meta record's value
+     */
+    long value(){
+        return value;
+    }
+
+    String string(final int id){
+        return id < strings.size() ? strings.get(id) : null;
+    }
+
+    /**
+     * @return the stack as "frame;frame;...;", outermost first, like a line of the text format
+     */
+    String stackText(final int id){
+        return id < stacks.size() ? stacks.get(id) : null;
+    }
+
+    /**
+     * @return the current record as a line of the text format
+     */
+    String line(){
+        if (isEvent()){
+            return stackText(stackId) + string(stringId) + " " + value;
+        }
+        return "#" + string(stringId) + " " + value;
+    }
+
+    /**
+     * @return true if the file ended in the middle of a record
+     */
+    boolean isTruncated(){
+        return truncated;
+    }
+
+    private boolean readPayload() throws IOException {
+        try {
+            final long length = BinaryEventFormat.readVarint(in);
+            if (length > Integer.MAX_VALUE){
+                throw new IOException("Malformed record length " + length);
+            }
+            payloadLength = (int) length;
+            if (payload.length < payloadLength){
+                payload = new byte[Math.max(payloadLength, payload.length * 2)];
+            }
+            in.readFully(payload, 0, payloadLength);
+            return true;
+        } catch (EOFException e){
+            return false;
+        }
+    }
+
+    private int readInt() throws IOException {
+        return (int) BinaryEventFormat.readVarint(payload, position);
+    }
+
+    private static void set(final List<String> table, final int id, final String value){
+        while (table.size() <= id){
+            table.add(null);
+        }
+        table.set(id, value);
+    }
+}
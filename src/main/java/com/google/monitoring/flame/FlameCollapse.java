@@ -8,17 +8,26 @@ import java.util.Map;
 /**
  * Utility used to process stacktrace data generated from the flamesampler into a format compatible with the
  * FlameGraph tools. This work largely consists of combining all like stacktraces and summing their values.
+ * Reads the text, interned and binary output formats. "--text input [output]" converts a binary file to
+ * the text format instead.
  *
  * Created by jmaloney on 5/27/2016.
  */
 public class FlameCollapse {
     private final Map<String, Long> traces = new HashMap<>();
+    // Definitions from "#f" and "#s" lines of interned output
+    private final Map<String, String> frames = new HashMap<>();
+    private final Map<String, String> stacks = new HashMap<>();
     private final String outputFile = "collapsed.txt";
     private String inputPath = "stacks.txt";
     private long inputLineCount = 0;
     private String methodFilter = null;
 
     public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("--text")){
+            toText(args[1], args.length > 2 ? args[2] : args[1] + ".txt");
+            return;
+        }
         System.out.println("Begin FlameCollapse...");
         FlameCollapse collapser = new FlameCollapse();
         collapser.handleArgs(args);
@@ -37,12 +46,26 @@ public class FlameCollapse {
 
     public void collapseFile(){
         try {
+            if (isBinary(inputPath)){
+                collapseBinary();
+                return;
+            }
             final BufferedReader br = new BufferedReader(new FileReader(inputPath));
             String line;
             while ((line = br.readLine()) != null) {
                 inputLineCount++;
-                if (line.startsWith("#")){
+                if (line.isEmpty() || line.charAt(0) == '\0'){
+                    continue; // the zero padding of a memory mapped file that wasn't closed
+                } else if (line.startsWith("#f ") || line.startsWith("#s ")){
+                    define(line);
+                    continue;
+                } else if (line.startsWith("#")){
                     continue; // skip "comment/meta" lines
+                } else if (line.startsWith("@")){
+                    line = resolve(line);
+                    if (line == null){
+                        continue;
+                    }
                 }
 
                 processLine(traces, line);
@@ -58,6 +81,82 @@ public class FlameCollapse {
         }
     }
 
+    /**
+     * Convert a binary output file to the text format.
+     *
+     * @param inputPath the binary file
+     * @param outputPath where to write the text
+     */
+    public static void toText(final String inputPath, final String outputPath) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(inputPath), 64 * 1024);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath), "utf-8"));
+        try {
+            final BinaryEventReader reader = new BinaryEventReader(in);
+            while (reader.next()){
+                writer.write(reader.line());
+                writer.write("\n");
+            }
+            if (reader.isTruncated()){
+                System.out.println(inputPath + " ends with an incomplete record, which was skipped");
+            }
+        } finally {
+            writer.close();
+            in.close();
+        }
+    }
+
+    private static boolean isBinary(final String path) throws IOException {
+        final InputStream in = new FileInputStream(path);
+        try {
+            final byte[] start = new byte[4];
+            int length = 0;
+            int read;
+            while (length < start.length && (read = in.read(start, length, start.length - length)) > 0){
+                length += read;
+            }
+            return BinaryEventReader.isBinary(start, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Sums the events by stack and object id first, so each distinct stack is only squashed once
+    private void collapseBinary() throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(inputPath), 64 * 1024);
+        try {
+            final BinaryEventReader reader = new BinaryEventReader(in);
+            final Map<Long, long[]> totals = new HashMap<>();
+            while (reader.next()){
+                inputLineCount++;
+                if (!reader.isEvent()){
+                    continue;
+                }
+                final Long key = ((long) reader.stackId() << 32) | reader.stringId();
+                long[] total = totals.get(key);
+                if (total == null){
+                    total = new long[1];
+                    totals.put(key, total);
+                }
+                total[0] += reader.value();
+            }
+            if (reader.isTruncated()){
+                System.out.println(inputPath + " ends with an incomplete record, which was skipped");
+            }
+
+            for (Map.Entry<Long, long[]> entry : totals.entrySet()){
+                final long key = entry.getKey();
+                final String stack = reader.stackText((int) (key >>> 32));
+                if (stack == null){
+                    System.out.println("Undefined stack " + (key >>> 32));
+                    continue;
+                }
+                addTrace(traces, stack + reader.string((int) key), entry.getValue()[0]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     public void writeData(){
         try {
             final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
@@ -79,14 +178,43 @@ public class FlameCollapse {
         }
     }
 
+    // "#f <frameId> <frame>" or "#s <stackId> <frameId>;<frameId>;..." with the outermost frame first
+    private void define(final String line){
+        final String[] split = line.split(" ", 3);
+        if (split[0].equals("#f")){
+            frames.put(split[1], split.length > 2 ? split[2] : "");
+            return;
+        }
+        final StringBuilder builder = new StringBuilder();
+        if (split.length > 2 && !split[2].isEmpty()){
+            for (String frameId : split[2].split(";")){
+                builder.append(frames.get(frameId)).append(";");
+            }
+        }
+        stacks.put(split[1], builder.toString());
+    }
+
+    // Turns "@<stackId> <object> <bytes>" back into a whole stack line
+    private String resolve(final String line){
+        final int space = line.indexOf(' ');
+        final String stack = space < 0 ? null : stacks.get(line.substring(1, space));
+        if (stack == null){
+            System.out.println("Undefined stack(" + inputLineCount +"): "  + line);
+            return null;
+        }
+        return stack + line.substring(space + 1);
+    }
+
     private void processLine(final Map<String, Long> traces, final String line) {
         final String[] split = line.split(" ");
         if (split.length < 2){
             System.out.println("Incomplete line(" + inputLineCount +"): "  + line);
             return;
         }
-        String key = split[0];
-        Long bytesAllocated = Long.valueOf(split[1]);
+        addTrace(traces, split[0], Long.valueOf(split[1]));
+    }
+
+    private void addTrace(final Map<String, Long> traces, String key, Long bytesAllocated) {
         if (methodFilter != null) {
             key = StackTraceParsers.squashTruncateNoFilter(key, methodFilter);
         } else {
@@ -17,16 +17,14 @@
 package com.google.monitoring.runtime.instrumentation;
 
 import com.google.monitoring.runtime.instrumentation.adapters.AllocationClassAdapter;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationMethodAdapter;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationSiteScanner;
+import com.google.monitoring.runtime.instrumentation.adapters.EscapeAnalyzer;
+import com.google.monitoring.runtime.instrumentation.adapters.EscapeClassAdapter;
+import com.google.monitoring.runtime.instrumentation.adapters.InstrumentationOptions;
+import com.google.monitoring.runtime.instrumentation.adapters.PassthroughClassAdapter;
 import com.google.monitoring.runtime.instrumentation.adapters.VerifyingClassAdapter;
-import com.google.monitoring.runtime.instrumentation.events.AllocationEvent;
-import com.google.monitoring.runtime.instrumentation.recorders.FlamePrinter;
-import com.google.monitoring.runtime.instrumentation.recorders.FlameRecorder;
-import com.google.monitoring.runtime.instrumentation.events.LifetimeEvent;
-import com.google.monitoring.runtime.instrumentation.recorders.LifetimePrinter;
-import com.google.monitoring.runtime.instrumentation.recorders.LifetimeRecorder;
-import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
-import com.google.monitoring.runtime.instrumentation.sample.PeriodicSampler;
-import com.google.monitoring.runtime.instrumentation.sample.SampleStrategy;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -34,11 +32,12 @@ import org.objectweb.asm.ClassWriter;
 import java.io.*;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -63,23 +62,71 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     // guarantee programmatically.
     private static volatile boolean canRewriteBootstrap;
 
-    private static boolean canRewriteClass(final String className, final ClassLoader loader) {
-        // There are two conditions under which we don't rewrite:
-        //  1. If className was loaded by the bootstrap class loader and
-        //  the agent wasn't (in which case the class being rewritten
-        //  won't be able to call agent methods).
-        //  2. If it is java.lang.ThreadLocal, which can't be rewritten because the
-        //  JVM depends on its structure.
-        if (((loader == null) && !canRewriteBootstrap) ||
-                className.startsWith("java/lang/ThreadLocal")) {
-            return false;
-        }
-        // third_party/java/webwork/*/ognl.jar contains bad class files.  Ugh.
-        if (className.startsWith("ognl/")) {
+    private static final String RECORDER_CLASS = "com/google/monitoring/runtime/instrumentation/AllocationRecorder";
+    private static final String RECORDER_METHOD = "recordAllocation";
+
+    // How the agent instruments classes: inline sampling (sample.strategy=inline),
+    // the kinds of allocation covered (instrument.coverage), the sites left
+    // uninstrumented (escape.skip.file) and escape training (escape.training.file)
+    private static volatile InstrumentationOptions options =
+            InstrumentationOptions.recordingWith(RECORDER_CLASS, RECORDER_METHOD);
+
+    // Where escape training writes its skip list (escape.training.file), or
+    // null when allocation sites are instrumented for the recorder instead
+    private static volatile String escapeTrainingFile;
+
+    // Where instrumented classes are kept between runs (instrument.cache.dir), or null
+    private static volatile InstrumentedClassCache classCache;
+
+    // Passed to agentmain instead of a properties file to undo an earlier attach
+    static final String DETACH_ARGUMENT = "detach";
+
+    // What attach() set up, for detach() to take down. Guarded by the class lock.
+    private static Instrumentation attachedInstrumentation;
+    private static AllocationInstrumenter transformer;
+    private static AllocationProfiler profiler;
+    private static Thread shutdownHook;
+    private static ClassRetransformer retransformer;
+
+    // Classes that are never rewritten, whatever include.packages and exclude.packages say:
+    //  - java.lang.ThreadLocal, which can't be rewritten because the JVM
+    //  depends on its structure.
+    //  - third_party/java/webwork/*/ognl.jar contains bad class files.  Ugh.
+    //  - The agent itself, along with the asm and guava classes relocated
+    //  into its package, except for its Test program.
+    private static final List<String> BUILT_IN_EXCLUDES = Arrays.asList(
+            "java/lang/ThreadLocal",
+            "ognl/",
+            "com/google/monitoring/runtime/instrumentation/");
+    private static final List<String> BUILT_IN_INCLUDES = Arrays.asList(
+            "com/google/monitoring/runtime/instrumentation/Test");
+
+    private static volatile ClassFilter classFilter = createClassFilter("", "");
+
+    static boolean canRewriteClass(final String className, final ClassLoader loader) {
+        // We don't rewrite if className was loaded by the bootstrap class
+        // loader and the agent wasn't (in which case the class being
+        // rewritten won't be able to call agent methods).
+        if (className == null || ((loader == null) && !canRewriteBootstrap)) {
             return false;
         }
+        return classFilter.accepts(className);
+    }
 
-        return true;
+    /**
+     * @param includePackages the include.packages property; if it's empty
+     *                        every class that isn't excluded is rewritten
+     * @param excludePackages the exclude.packages property
+     * @return a filter for canRewriteClass with the built in exclusions added
+     */
+    static ClassFilter createClassFilter(final String includePackages, final String excludePackages) {
+        final List<String> excludes = ClassFilter.parse(excludePackages);
+        excludes.addAll(BUILT_IN_EXCLUDES);
+        final List<String> includes = ClassFilter.parse(includePackages);
+        if (includes.isEmpty()) {
+            return new ClassFilter(BUILT_IN_INCLUDES, excludes, true);
+        }
+        return new ClassFilter(includes, excludes, false);
     }
 
     // No instantiating me except in premain() or in {@link JarClassTransformer}.
@@ -87,6 +134,30 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     }
 
     public static void premain(final String agentArgs, final Instrumentation inst) {
+        attach(agentArgs, inst);
+    }
+
+    /**
+     * Entry point when the agent is loaded into a running JVM. Classes that are already loaded are
+     * retransformed, so the JVM only pays for the instrumentation while a profiling session runs.
+     *
+     * @param agentArgs the properties file, as for premain, or "detach" to remove the instrumentation
+     *                  again, see {@link #detach()}
+     * @param inst the JVM's Instrumentation
+     */
+    public static void agentmain(final String agentArgs, final Instrumentation inst) {
+        if (DETACH_ARGUMENT.equals(agentArgs)) {
+            detach();
+        } else {
+            attach(agentArgs, inst);
+        }
+    }
+
+    private static synchronized void attach(final String agentArgs, final Instrumentation inst) {
+        if (transformer != null) {
+            System.err.println("Allocation instrumentation is already attached.");
+            return;
+        }
         System.out.println("Loading allocation instrumentation...");
         AllocationRecorder.setInstrumentation(inst);
 
@@ -119,128 +190,177 @@ public class AllocationInstrumenter implements ClassFileTransformer {
         }
         canRewriteBootstrap = true;
 
-        if (!setupRecorder(agentArgs)){
+        final InstrumentationPropertiesImpl properties = new InstrumentationPropertiesImpl(agentArgs);
+        final long start = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(properties.delaySecs());
+        if (!setupRecorder(properties, start)){
             return;
         }
 
-        bootstrap(inst);
+        attachedInstrumentation = inst;
+        bootstrap(inst, properties, start);
         System.out.println("Loaded allocation instrumentation!");
     }
 
     /**
-     * Load the properties file and set the specified settings.
-     *
-     * @param propertiesPath path to properties file
-     * @return true if sampler setup successful
+     * Stop sampling, stop the printer and give every loaded class back its original bytecode. With the
+     * transformer removed, retransforming a class starts from the bytes it was loaded from and nothing
+     * rewrites them.
      */
-    private static boolean setupRecorder(final String propertiesPath){
-        final InstrumentationProperties properties = new InstrumentationPropertiesImpl(propertiesPath);
+    static synchronized void detach() {
+        if (transformer == null) {
+            System.err.println("Allocation instrumentation isn't attached.");
+            return;
+        }
+        AllocationRecorder.setEnabled(false);
+        attachedInstrumentation.removeTransformer(transformer);
+        transformer = null;
+        classCache = null;
+
+        if (attachedInstrumentation.isRetransformClassesSupported()) {
+            if (retransformer != null) {
+                // Stop a background retransformation still instrumenting classes before undoing it
+                retransformer.interrupt();
+                try {
+                    retransformer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                retransformer = new ClassRetransformer(attachedInstrumentation,
+                        InstrumentationProperties.DEFAULT_RETRANSFORM_BATCH_SIZE, 0);
+            }
+            retransformer.retransformLoadedClasses();
+        } else {
+            System.err.println("Retransformation isn't supported, instrumented classes keep their allocation hooks.");
+        }
+        attachedInstrumentation = null;
+        retransformer = null;
 
-        // Set sampling properties
-        final long start = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(properties.delaySecs());
-        final SampleStrategy sampleStrategy;
-        switch (properties.sampleStrategy()){
-            case "allocationCount":
-                sampleStrategy = new AllocationCountSampler(start, properties.sampleRate(), properties.sampleRate());
-                break;
-            case "time":
-                sampleStrategy = new PeriodicSampler(start, properties.sampleInterval(), properties.sampleInterval());
-                break;
-            default:
-                System.err.println("Unknown sample strategy! " + properties.sampleStrategy() + " Stopping instrumentations.");
-                return false;
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        shutdownHook = null;
+        profiler.unregister();
+        try {
+            profiler.finish();
+        } catch (Exception e) {
+            e.printStackTrace();
         }
-        AllocationRecorder.setSampleStrategy(sampleStrategy);
+        profiler = null;
+        finishEscapeTraining();
+        System.out.println("Detached allocation instrumentation.");
+    }
 
-        // Setup recorder
+    /**
+     * Set up sampling and recording from the properties.
+     *
+     * @param properties the agent's properties
+     * @param start when sampling may start, in epoch millis
+     * @return true if sampler setup successful
+     */
+    private static boolean setupRecorder(final InstrumentationPropertiesImpl properties, final long start){
+        final AllocationProfiler newProfiler = new AllocationProfiler();
+        final Set<AllocationKind> kinds;
+        final Set<String> skip;
         try{
-            switch (properties.recorder()){
-                case "flame":
-                    setupFlameSampler(properties);
-                    break;
-                case "lifetime":
-                    setupLifetimeRecorder(properties);
-                    break;
+            newProfiler.configure(properties, start);
+            kinds = AllocationKind.parse(properties.instrumentCoverage());
+            skip = properties.escapeSkipFile().isEmpty() ? Collections.<String>emptySet() :
+                    EscapeAnalyzer.readSkipList(properties.escapeSkipFile());
+            if (!properties.escapeTrainingFile().isEmpty()) {
+                EscapeAnalyzer.train(properties.escapeTrainingMinElided());
             }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ". Stopping instrumentation.");
+            return false;
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Exception setting up the " + properties.recorder() + " recorder. Stopping instrumentation.");
             return false;
         }
+        setInlineSampling(properties.sampleStrategy().equals("inline"));
+        setCoverage(kinds);
+        setSkipSites(skip);
+        setEscapeTrainingFile(properties.escapeTrainingFile().isEmpty() ? null : properties.escapeTrainingFile());
+        profiler = newProfiler;
 
-        return true;
-    }
-
-    private static void setupLifetimeRecorder(final InstrumentationProperties properties) throws FileNotFoundException, UnsupportedEncodingException {
-        final BlockingQueue<LifetimeEvent> queue = new ArrayBlockingQueue<>(2048);
-        final LifetimePrinter printer = new LifetimePrinter(properties);
-        printer.setQueue(queue);
-        printer.start();
-
-        final LifetimeRecorder lifetimeRecorder = new LifetimeRecorder(queue, printer.getId(), properties.recordSize());
-        AllocationRecorder.setRecorder(lifetimeRecorder);
-
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+        shutdownHook = new Thread() {
             @Override
             public void run() {
                 try {
-                    printer.close();
+                    newProfiler.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                finishEscapeTraining();
             }
-        });
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
 
+        // A previous detach left sampling off
+        AllocationRecorder.setEnabled(true);
+        if (properties.jmxEnabled()){
+            newProfiler.register();
+        }
+        return true;
     }
 
-    private static void setupFlameSampler(final InstrumentationProperties properties) throws FileNotFoundException, UnsupportedEncodingException {
-        final BlockingQueue<AllocationEvent> queue = new ArrayBlockingQueue<>(2048);
-        final FlamePrinter printer = new FlamePrinter(properties);
-        printer.setQueue(queue);
-        printer.start();
+    static void setInlineSampling(final boolean inline) {
+        options = options.withInlineSampling(inline);
+    }
 
-        final FlameRecorder flameRecorder = new FlameRecorder(queue,printer.getId(), properties.recordSize());
-        AllocationRecorder.setRecorder(flameRecorder);
+    static void setCoverage(final Set<AllocationKind> kinds) {
+        options = options.withCoverage(kinds);
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                try {
-                    printer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
+    static void setSkipSites(final Set<String> keys) {
+        options = options.withSkipSites(keys);
     }
 
-    private static void bootstrap(final Instrumentation inst) {
-        inst.addTransformer(new AllocationInstrumenter(),
-                inst.isRetransformClassesSupported());
+    /**
+     * @param path where to write the skip list, or null to instrument
+     *             allocation sites for the recorder rather than for escape
+     *             training
+     */
+    static void setEscapeTrainingFile(final String path) {
+        escapeTrainingFile = path;
+        options = options.withEscapeTraining(path != null);
+    }
 
-        if (!canRewriteBootstrap) {
+    // Writes the skip list if this is an escape training run.
+    private static void finishEscapeTraining() {
+        final String path = escapeTrainingFile;
+        if (path == null) {
             return;
         }
-
-        // Get the set of already loaded classes that can be rewritten.
-        final Class<?>[] classes = inst.getAllLoadedClasses();
-        final ArrayList<Class<?>> classList = new ArrayList<Class<?>>();
-        for (int i = 0; i < classes.length; i++) {
-            if (inst.isModifiableClass(classes[i])) {
-                classList.add(classes[i]);
-            }
+        setEscapeTrainingFile(null);
+        try {
+            final int sites = EscapeAnalyzer.finishTraining(path);
+            System.out.println("Escape training found " + sites + " allocation sites to skip, written to " + path);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        // Reload classes, if possible.
-        final Class<?>[] workaround = new Class<?>[classList.size()];
-        try {
-            inst.retransformClasses(classList.toArray(workaround));
-        } catch (UnmodifiableClassException e) {
-            System.err.println("AllocationInstrumenter was unable to " +
-                    "retransform early loaded classes.");
+    private static void bootstrap(final Instrumentation inst, final InstrumentationProperties properties, final long start) {
+        classFilter = createClassFilter(properties.includePackages(), properties.excludePackages());
+        // Classes instrumented for escape training aren't cached
+        if (!properties.instrumentCacheDir().isEmpty() && escapeTrainingFile == null) {
+            classCache = new InstrumentedClassCache(properties.instrumentCacheDir(), options);
         }
+        transformer = new AllocationInstrumenter();
+        inst.addTransformer(transformer,
+                inst.isRetransformClassesSupported());
 
+        if (!canRewriteBootstrap || !inst.isRetransformClassesSupported()) {
+            return;
+        }
 
+        // Instrument the classes that were loaded before the agent
+        retransformer = new ClassRetransformer(inst, properties.retransformBatchSize(), start);
+        if (properties.retransformAsync()) {
+            retransformer.start();
+        } else {
+            retransformer.retransformLoadedClasses();
+        }
     }
 
     @Override
@@ -253,7 +373,25 @@ public class AllocationInstrumenter implements ClassFileTransformer {
             return null;
         }
 
-        return instrument(origBytes, loader);
+        final InstrumentedClassCache cache = classCache;
+        if (cache == null) {
+            return unlessUnchanged(instrument(origBytes, loader), origBytes);
+        }
+        final String key = cache.key(origBytes);
+        final byte[] cached = cache.get(key, origBytes);
+        if (cached != null) {
+            return unlessUnchanged(cached, origBytes);
+        }
+        final List<AllocationSite> sites = new ArrayList<>();
+        final byte[] instrumented = instrument(origBytes, loader, options, sites);
+        cache.put(key, origBytes, instrumented, sites);
+        return unlessUnchanged(instrumented, origBytes);
+    }
+
+    // A transformer returns null to leave a class alone, which spares the
+    // JVM from parsing and verifying the bytes again.
+    private static byte[] unlessUnchanged(final byte[] instrumented, final byte[] original) {
+        return instrumented == original ? null : instrumented;
     }
 
 
@@ -269,12 +407,32 @@ public class AllocationInstrumenter implements ClassFileTransformer {
      * @param recorderMethod the <code>String</code> name of the recorder method
      *                       to run.
      * @param loader         the <code>ClassLoader</code> for this class.
-     * @return the instrumented <code>byte[]</code> code.
+     * @return the instrumented <code>byte[]</code> code, or originalBytes
+     *         itself if the class has nothing to instrument.
      */
     public static byte[] instrument(final byte[] originalBytes,
                                     final String recorderClass,
                                     final String recorderMethod,
                                     final ClassLoader loader) {
+        return instrument(originalBytes, loader, InstrumentationOptions.recordingWith(recorderClass, recorderMethod),
+                null);
+    }
+
+    /**
+     * @param options how allocation sites are instrumented; with escape
+     *                training they call {@link EscapeAnalyzer} before and
+     *                after they allocate, and nothing is recorded
+     * @param sites   if not null, each allocation site is registered with
+     *                {@link AllocationSites} and added to this list, and the
+     *                recorder method must have
+     *                {@link AllocationMethodAdapter#RECORDER_SITE_SIGNATURE}
+     *                to take the site's id
+     * @see #instrument(byte[], String, String, ClassLoader)
+     */
+    public static byte[] instrument(final byte[] originalBytes,
+                                    final ClassLoader loader,
+                                    final InstrumentationOptions options,
+                                    final List<AllocationSite> sites) {
         final ClassReader cr = new ClassReader(originalBytes);
         try {
 
@@ -285,16 +443,30 @@ public class AllocationInstrumenter implements ClassFileTransformer {
                 }
             }
 
+            // Only the methods with allocation sites are rewritten, the rest
+            // are copied as they are.  Interfaces, annotations and most
+            // small classes have none and are returned as they are.
+            final AllocationSiteScanner scanned = AllocationSiteScanner.scan(cr, options);
+            if (!scanned.hasSites()) {
+                return originalBytes;
+            }
+
             // The verifier in JDK7+ requires accurate stackmaps, so we use
             // COMPUTE_FRAMES.
             final ClassWriter cw = new StaticClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
 
             final VerifyingClassAdapter vcw = new VerifyingClassAdapter(cw, originalBytes, cr.getClassName());
-            final ClassVisitor adapter = new AllocationClassAdapter(vcw, recorderClass, recorderMethod);
+            final ClassVisitor adapter = options.isEscapeTraining() ? new EscapeClassAdapter(vcw, options) :
+                    new AllocationClassAdapter(vcw, options, sites);
 
-            cr.accept(adapter, ClassReader.SKIP_FRAMES);
+            cr.accept(new PassthroughClassAdapter(adapter, cw, scanned), ClassReader.SKIP_FRAMES);
 
-            return vcw.toByteArray();
+            final byte[] instrumented = vcw.toByteArray();
+            if (instrumented == originalBytes && sites != null) {
+                // The class failed verification and none of its sites will be called
+                sites.clear();
+            }
+            return instrumented;
         } catch (RuntimeException e) {
             logger.log(Level.WARNING, "Failed to instrument class.", e);
             throw e;
@@ -314,10 +486,6 @@ public class AllocationInstrumenter implements ClassFileTransformer {
      * version that uses the recorder in this class.
      */
     public static byte[] instrument(final byte[] originalBytes, final ClassLoader loader) {
-        return instrument(
-                originalBytes,
-                "com/google/monitoring/runtime/instrumentation/AllocationRecorder",
-                "recordAllocation",
-                loader);
+        return instrument(originalBytes, loader, options, new ArrayList<AllocationSite>());
     }
 }
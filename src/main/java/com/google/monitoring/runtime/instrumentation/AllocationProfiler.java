@@ -0,0 +1,303 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.events.AllocationEvent;
+import com.google.monitoring.runtime.instrumentation.events.LifetimeEvent;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
+import com.google.monitoring.runtime.instrumentation.recorders.FlamePrinter;
+import com.google.monitoring.runtime.instrumentation.recorders.FlameRecorder;
+import com.google.monitoring.runtime.instrumentation.recorders.FrameFilter;
+import com.google.monitoring.runtime.instrumentation.recorders.LifetimePrinter;
+import com.google.monitoring.runtime.instrumentation.recorders.LifetimeRecorder;
+import com.google.monitoring.runtime.instrumentation.recorders.Printer;
+import com.google.monitoring.runtime.instrumentation.recorders.SiteHistogramPrinter;
+import com.google.monitoring.runtime.instrumentation.recorders.SiteHistogramRecorder;
+import com.google.monitoring.runtime.instrumentation.recorders.ThreadRingBuffers;
+import com.google.monitoring.runtime.instrumentation.sample.AllocatedBytesSampler;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import com.google.monitoring.runtime.instrumentation.sample.InlineCountSampler;
+import com.google.monitoring.runtime.instrumentation.sample.PeriodicSampler;
+import com.google.monitoring.runtime.instrumentation.sample.SampleStrategy;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Sets up the sample strategy, recorder and printer from the properties and lets them be changed while the
+ * JVM runs. Registered as an MBean under OBJECT_NAME, so sampling can be turned on from a JMX console
+ * during an incident and left off the rest of the time.
+ *
+ * A change makes a copy of the properties with the new value and builds a new strategy, or a new recorder
+ * and printer, from it. AllocationRecorder is pointed at the new one in a single write; the old printer then
+ * writes out what was recorded before the switch and stops.
+ */
+public class AllocationProfiler implements AllocationProfilerMBean {
+    public static final String OBJECT_NAME = "com.google.monitoring.runtime.instrumentation:type=AllocationProfiler";
+
+    private static final String INLINE_STRATEGY = "inline";
+
+    private InstrumentationPropertiesImpl properties;
+    // When sampling may start, kept for the strategies built to replace the first
+    private long start;
+    private Printer printer;
+    private FlagFileWatcher flagWatcher;
+
+    /**
+     * Install the strategy and recorder the properties ask for.
+     *
+     * @param properties the agent's properties
+     * @param start when sampling may start, in epoch millis
+     * @throws IllegalArgumentException if the sample strategy or recorder is unknown
+     * @throws IOException if the printer's output can't be opened
+     */
+    synchronized void configure(final InstrumentationPropertiesImpl properties, final long start) throws IOException {
+        final SampleStrategy sampleStrategy = createSampleStrategy(properties, start);
+        final Printer newPrinter = startRecorder(properties);
+        AllocationRecorder.setSampleStrategy(sampleStrategy);
+        this.properties = properties;
+        this.start = start;
+        this.printer = newPrinter;
+        watchFlagFile(properties);
+    }
+
+    /**
+     * Register as an MBean with the platform MBean server.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Unable to register " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    void unregister() {
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            System.err.println("Unable to unregister " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Stop the printer once it has written what was recorded, when the agent detaches.
+     *
+     * @throws InterruptedException if interrupted waiting for the printer
+     * @throws IOException if the output fails to close
+     */
+    synchronized void finish() throws InterruptedException, IOException {
+        if (flagWatcher != null) {
+            flagWatcher.finish();
+            flagWatcher = null;
+        }
+        if (printer != null) {
+            printer.finish();
+            printer = null;
+        }
+    }
+
+    synchronized Printer getPrinter() {
+        return printer;
+    }
+
+    /**
+     * Close the printer's output, from a shutdown hook.
+     *
+     * @throws IOException if the output fails to close
+     */
+    synchronized void close() throws IOException {
+        if (printer != null) {
+            printer.close();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return AllocationRecorder.isEnabled();
+    }
+
+    @Override
+    public void start() {
+        AllocationRecorder.setEnabled(true);
+    }
+
+    @Override
+    public void stop() {
+        AllocationRecorder.setEnabled(false);
+    }
+
+    @Override
+    public void detach() {
+        AllocationInstrumenter.detach();
+    }
+
+    @Override
+    public synchronized String getRecorder() {
+        return properties.recorder();
+    }
+
+    @Override
+    public synchronized void setRecorder(final String recorder) throws IOException {
+        replaceRecorder(properties.with(InstrumentationProperties.RECORDER_PROPERTY, recorder));
+    }
+
+    @Override
+    public synchronized String getVerbosity() {
+        return properties.getRaw(InstrumentationProperties.VERBOSITY_LEVEL_PROPERTY, "methodClassName");
+    }
+
+    @Override
+    public synchronized void setVerbosity(final String verbosity) throws IOException {
+        switch (verbosity) {
+            case "methodName":
+            case "methodClassName":
+            case "methodClassLineNumber":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown verbosity " + verbosity);
+        }
+        replaceRecorder(properties.with(InstrumentationProperties.VERBOSITY_LEVEL_PROPERTY, verbosity));
+    }
+
+    @Override
+    public synchronized String getSampleStrategy() {
+        return properties.sampleStrategy();
+    }
+
+    @Override
+    public synchronized void setSampleStrategy(final String strategy) {
+        if (INLINE_STRATEGY.equals(strategy) != INLINE_STRATEGY.equals(properties.sampleStrategy())) {
+            throw new IllegalArgumentException("Inline sampling can only be chosen at startup");
+        }
+        replaceSampleStrategy(InstrumentationProperties.SAMPLE_STRATEGY_PROPERTY, strategy);
+    }
+
+    @Override
+    public synchronized long getSampleRate() {
+        return properties.sampleRate();
+    }
+
+    @Override
+    public synchronized void setSampleRate(final long rate) {
+        replaceSampleStrategy(InstrumentationProperties.SAMPLE_RATE_PROPERTY, positive(rate));
+    }
+
+    @Override
+    public synchronized long getSampleIntervalMs() {
+        return properties.sampleInterval();
+    }
+
+    @Override
+    public synchronized void setSampleIntervalMs(final long intervalMs) {
+        replaceSampleStrategy(InstrumentationProperties.SAMPLE_INTERVAL_PROPERTY, positive(intervalMs));
+    }
+
+    @Override
+    public synchronized long getSampleBytes() {
+        return properties.sampleBytes();
+    }
+
+    @Override
+    public synchronized void setSampleBytes(final long bytes) {
+        replaceSampleStrategy(InstrumentationProperties.SAMPLE_BYTES_PROPERTY, positive(bytes));
+    }
+
+    private void replaceSampleStrategy(final String propertyName, final String value) {
+        final InstrumentationPropertiesImpl changed = properties.with(propertyName, value);
+        // Keeps sample.delay.secs if it hasn't passed yet
+        AllocationRecorder.setSampleStrategy(createSampleStrategy(changed, start));
+        properties = changed;
+    }
+
+    private void replaceRecorder(final InstrumentationPropertiesImpl changed) throws IOException {
+        final Printer oldPrinter = printer;
+        printer = startRecorder(changed);
+        properties = changed;
+        watchFlagFile(changed);
+        try {
+            oldPrinter.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Only the flame recorder is gated on the flag file; the others sample whether it exists or not
+    private void watchFlagFile(final InstrumentationProperties properties) {
+        final boolean gated = properties.recorder().equals("flame") && !properties.flagFile().isEmpty();
+        if (gated && flagWatcher == null) {
+            flagWatcher = new FlagFileWatcher(properties.flagFile(), properties.flagRefreshMs());
+            flagWatcher.start();
+        } else if (!gated && flagWatcher != null) {
+            try {
+                flagWatcher.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flagWatcher = null;
+        }
+    }
+
+    private static String positive(final long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Must be positive: " + value);
+        }
+        return Long.toString(value);
+    }
+
+    static SampleStrategy createSampleStrategy(final InstrumentationProperties properties, final long start) {
+        switch (properties.sampleStrategy()){
+            case "allocationCount":
+                return new AllocationCountSampler(start, properties.sampleRate(), properties.sampleRate());
+            case "time":
+                return new PeriodicSampler(start, properties.sampleInterval(), properties.sampleInterval());
+            case "bytes":
+                return new AllocatedBytesSampler(start, properties.sampleBytes());
+            case INLINE_STRATEGY:
+                return new InlineCountSampler(start, properties.sampleRate(), properties.sampleRate());
+            default:
+                throw new IllegalArgumentException("Unknown sample strategy " + properties.sampleStrategy());
+        }
+    }
+
+    // Starts a printer for the recorder the properties ask for and points AllocationRecorder at the new recorder
+    private static Printer startRecorder(final InstrumentationProperties properties) throws IOException {
+        final StackTable stackTable = new StackTable();
+        final FrameFilter skip = FrameFilter.parse(properties.stackSkipFrames());
+        switch (properties.recorder()){
+            case "flame": {
+                final ThreadRingBuffers<AllocationEvent> buffers = new ThreadRingBuffers<>(properties.bufferSize());
+                final FlamePrinter printer = new FlamePrinter(properties, stackTable);
+                printer.setBuffers(buffers);
+                printer.start();
+                AllocationRecorder.setRecorder(new FlameRecorder(buffers, stackTable, printer.getId(),
+                        properties.recordSize(), properties.maxStackDepth(), skip));
+                return printer;
+            }
+            case "lifetime": {
+                final ThreadRingBuffers<LifetimeEvent> buffers = new ThreadRingBuffers<>(properties.bufferSize());
+                final LifetimePrinter printer = new LifetimePrinter(properties, stackTable);
+                printer.setBuffers(buffers);
+                printer.start();
+                AllocationRecorder.setRecorder(new LifetimeRecorder(buffers, stackTable, printer.getId(),
+                        properties.recordSize(), properties.maxStackDepth(), skip));
+                return printer;
+            }
+            case "histogram": {
+                final SiteHistogramPrinter printer = new SiteHistogramPrinter(properties);
+                final SiteHistogramRecorder recorder = new SiteHistogramRecorder(printer.getId(), properties.recordSize());
+                printer.setRecorder(recorder);
+                printer.start();
+                AllocationRecorder.setRecorder(recorder);
+                return printer;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown recorder " + properties.recorder());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+
+/**
+ * JMX view of the running profiler, see AllocationProfiler. Names and values are the ones used in the
+ * properties file.
+ */
+public interface AllocationProfilerMBean {
+
+    /**
+     * @return true if allocations are being sampled
+     */
+    boolean isEnabled();
+
+    /**
+     * Start sampling allocations.
+     */
+    void start();
+
+    /**
+     * Stop sampling allocations. Instrumented allocations then cost a single volatile read.
+     */
+    void stop();
+
+    /**
+     * Remove the agent's instrumentation, see AllocationInstrumenter.agentmain(). The agent can be attached
+     * again later.
+     */
+    void detach();
+
+    /**
+     * @return "flame", "lifetime" or "histogram"
+     */
+    String getRecorder();
+
+    /**
+     * Replace the recorder and its printer. The old printer writes out what was already recorded.
+     *
+     * @param recorder "flame", "lifetime" or "histogram"
+     * @throws IOException if the new printer's output can't be opened
+     */
+    void setRecorder(String recorder) throws IOException;
+
+    /**
+     * @return "methodName", "methodClassName" or "methodClassLineNumber"
+     */
+    String getVerbosity();
+
+    /**
+     * Replace the recorder with one that writes frames at a different verbosity.
+     *
+     * @param verbosity "methodName", "methodClassName" or "methodClassLineNumber"
+     * @throws IOException if the new printer's output can't be opened
+     */
+    void setVerbosity(String verbosity) throws IOException;
+
+    /**
+     * @return "allocationCount", "time", "bytes" or "inline"
+     */
+    String getSampleStrategy();
+
+    /**
+     * Switch between the allocationCount, time and bytes strategies. Whether allocation sites count down
+     * inline is decided when classes are instrumented, so inline can't be switched to or from.
+     *
+     * @param strategy "allocationCount", "time" or "bytes"
+     */
+    void setSampleStrategy(String strategy);
+
+    long getSampleRate();
+
+    /**
+     * @param rate the mean number of allocations between samples, for the allocationCount and inline strategies
+     */
+    void setSampleRate(long rate);
+
+    long getSampleIntervalMs();
+
+    /**
+     * @param intervalMs the minimum time between samples, for the time strategy
+     */
+    void setSampleIntervalMs(long intervalMs);
+
+    long getSampleBytes();
+
+    /**
+     * @param bytes the mean number of bytes allocated between samples, for the bytes strategy
+     */
+    void setSampleBytes(long bytes);
+}
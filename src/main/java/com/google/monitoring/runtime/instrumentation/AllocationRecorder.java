@@ -17,10 +17,9 @@
 package com.google.monitoring.runtime.instrumentation;
 
 import java.lang.instrument.Instrumentation;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.monitoring.runtime.instrumentation.recorders.Recorder;
+import com.google.monitoring.runtime.instrumentation.sample.SampleState;
 import com.google.monitoring.runtime.instrumentation.sample.SampleStrategy;
 
 /**
@@ -32,8 +31,19 @@ import com.google.monitoring.runtime.instrumentation.sample.SampleStrategy;
  */
 public class AllocationRecorder {
 
-    private static SampleStrategy sampleStrategy;
-    private static Recorder recorder;
+    // Volatile so AllocationProfiler can replace them while allocating threads are using them
+    private static volatile SampleStrategy sampleStrategy;
+    private static volatile Recorder recorder;
+
+    // Whether allocations are sampled at all. Checked before anything else, so a disabled profiler costs
+    // each allocation one volatile read. It is on while both switches below are.
+    private static volatile boolean enabled = true;
+
+    // Turned off by AllocationProfiler.stop() and detaching; guarded by samplerLock
+    private static boolean switchedOn = true;
+
+    // Turned off by FlagFileWatcher while the flag file is missing; guarded by samplerLock
+    private static boolean flagFilePresent = true;
 
     static {
         // Sun's JVMs in 1.5.0_06 and 1.6.0{,_01} have a bug where calling
@@ -70,9 +80,6 @@ public class AllocationRecorder {
     // will get a consistent view of it.
     private static final Object samplerLock = new Object();
 
-    // Used for re-entrancy checks
-    private static final ThreadLocal<Boolean> recordingAllocation = new ThreadLocal<Boolean>();
-
     /**
      * Sets the {@link Recorder} that will get run <b>every time an allocation is
      * sampled from Java code</b>.  Use this with <b>extreme</b> judiciousness!
@@ -110,23 +117,95 @@ public class AllocationRecorder {
      *               recorded.
      */
     public static void recordAllocation(final int count, final String desc, final Object newObj) {
+        recordAllocation(count, desc, newObj, AllocationSite.UNKNOWN);
+    }
+
+    /**
+     * Records the allocation made at an instrumented site.  This is the method the
+     * instrumentation calls.
+     *
+     * @param site the id of the allocation site, see {@link AllocationSites#get}
+     * @see #recordAllocation(int, String, Object)
+     */
+    public static void recordAllocation(final int count, final String desc, final Object newObj, final int site) {
+        if (!enabled) {
+            return;
+        }
+
+        // One ThreadLocal lookup gets both the re-entrancy flag and the sampler's countdown
+        final SampleState state = SampleState.current();
+
         // To prevent infinite sampling loop this is disabled while the sampler code is running
-        if (recordingAllocation.get() == Boolean.TRUE) {
+        if (!state.enter()) {
             return;
-        } else {
-            recordingAllocation.set(Boolean.TRUE);
         }
 
         try {
-            if (sampleStrategy.canSample()){
-                recorder.record(count, desc, newObj);
+            final Recorder current = recorder;
+            if (current.recordsEveryAllocation() || sampleStrategy.canSample(state, count, newObj)){
+                current.record(count, desc, newObj, site);
             }
         } finally {
-            recordingAllocation.set(Boolean.FALSE);
+            state.exit();
         }
 
     }
 
+    /**
+     * Turns sampling on or off.  While the flag file is watched sampling also
+     * needs the file to be there.
+     *
+     * @param enabled false to make recordAllocation return without sampling
+     */
+    static void setEnabled(final boolean enabled) {
+        synchronized (samplerLock) {
+            switchedOn = enabled;
+            AllocationRecorder.enabled = switchedOn && flagFilePresent;
+        }
+    }
+
+    /**
+     * Gates sampling on the flag file, see {@link FlagFileWatcher}.
+     *
+     * @param present false to stop sampling until the file is back
+     */
+    static void setFlagFilePresent(final boolean present) {
+        synchronized (samplerLock) {
+            flagFilePresent = present;
+            enabled = switchedOn && flagFilePresent;
+        }
+    }
+
+    /**
+     * @return true if allocations are being sampled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called by an inline sampling site when the calling thread's countdown has run out.
+     *
+     * @return whether to record the allocation
+     * @see SampleState#restartSiteCountdown(int)
+     */
+    public static boolean restartSiteCountdown() {
+        final SampleStrategy strategy = sampleStrategy;
+        final Recorder current = recorder;
+        final int next = strategy == null || (current != null && current.recordsEveryAllocation())
+                ? 1 : strategy.siteCountdown();
+        return SampleState.current().restartSiteCountdown(next);
+    }
+
+    /**
+     * Get the sampling strategy in use, which recorders use to weigh what they record.
+     *
+     * @return the current SampleStrategy
+     */
+    public static SampleStrategy getSampleStrategy() {
+        return sampleStrategy;
+    }
+
     /**
      * Sets the sampling strategy to use for sampling memory allocations.
      *
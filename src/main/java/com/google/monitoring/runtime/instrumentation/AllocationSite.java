@@ -0,0 +1,156 @@
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * An instrumented allocation site: the class and method of the code that allocates, which of the method's
+ * allocation instructions it is, its line and the type it allocates. Each site has an id, which the
+ * instrumented code passes to the recorder, and AllocationSites.get() finds the site again from its id.
+ *
+ * The ordinal counts every instruction of the method that allocates, whichever kinds are instrumented, so
+ * a site has the same ordinal under any instrument.coverage and two allocations of one type on one line are
+ * still two sites.
+ */
+public final class AllocationSite {
+    /**
+     * The id recordAllocation() passes on when the allocation wasn't instrumented with a site id.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final int id;
+    private final String className;
+    private final String methodName;
+    private final String methodDesc;
+    private final int ordinal;
+    private final int line;
+    private final String typeName;
+    private final StackTraceElement frame;
+
+    /**
+     * @param id the site's id
+     * @param className the internal name of the class the site is in
+     * @param methodName the method the site is in
+     * @param methodDesc the descriptor of the method the site is in
+     * @param ordinal how many allocating instructions come before the site's in the method
+     * @param line the site's line number, or -1 if the class has no line numbers
+     * @param typeName the type allocated, or null if it's only known when the allocation happens
+     */
+    AllocationSite(final int id, final String className, final String methodName, final String methodDesc,
+                   final int ordinal, final int line, final String typeName) {
+        this.id = id;
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.ordinal = ordinal;
+        this.line = line;
+        this.typeName = typeName;
+        this.frame = new StackTraceElement(className.replace('/', '.'), methodName, null, line);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the internal name of the class the site is in, like java/lang/String
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return the descriptor of the method the site is in, like (I)V
+     */
+    public String getMethodDesc() {
+        return methodDesc;
+    }
+
+    /**
+     * @return how many allocating instructions come before the site's in its method
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * @return the site's line number, or -1 if the class has no line numbers
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return the type allocated, or null if it's only known when the allocation happens
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * @return the site as the frame a stack trace taken at the allocation would start with
+     */
+    public StackTraceElement getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return the site as class.method(desc)#ordinal:line type, the form the site histogram and the escape
+     * skip list use
+     */
+    public String getKey() {
+        return key(className, methodName, methodDesc, ordinal, line, typeName);
+    }
+
+    /**
+     * @param className the internal name of the class the site is in
+     * @param methodName the method the site is in
+     * @param methodDesc the descriptor of the method the site is in
+     * @param ordinal how many allocating instructions come before the site's in the method
+     * @param line the site's line number
+     * @param typeName the type allocated, or null if it's only known when the allocation happens
+     * @return the key of the site, whether or not it's been registered, with ? for a null type
+     */
+    public static String key(final String className, final String methodName, final String methodDesc,
+                             final int ordinal, final int line, final String typeName) {
+        return className + "." + methodName + methodDesc + "#" + ordinal + ":" + line + " " +
+                (typeName == null ? "?" : typeName);
+    }
+
+    /**
+     * Sites are equal when they're the same instruction allocating the same type, whatever their ids.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AllocationSite)) {
+            return false;
+        }
+        final AllocationSite that = (AllocationSite) o;
+        return ordinal == that.ordinal &&
+                line == that.line &&
+                className.equals(that.className) &&
+                methodName.equals(that.methodName) &&
+                methodDesc.equals(that.methodDesc) &&
+                (typeName == null ? that.typeName == null : typeName.equals(that.typeName));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = className.hashCode();
+        result = 31 * result + methodName.hashCode();
+        result = 31 * result + methodDesc.hashCode();
+        result = 31 * result + ordinal;
+        result = 31 * result + line;
+        result = 31 * result + (typeName == null ? 0 : typeName.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + getKey();
+    }
+}
@@ -0,0 +1,107 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The table of instrumented allocation sites, see AllocationSite. Sites are registered while classes are
+ * instrumented and looked up by id while allocations are recorded, so lookups take no lock.
+ *
+ * A site that's instrumented again, like a class retransformed after the agent attaches a second time,
+ * keeps its first id.
+ */
+public final class AllocationSites {
+    private static final Object lock = new Object();
+
+    // Written under the lock, and written again after every change so readers see the new sites
+    private static volatile AllocationSite[] sites = new AllocationSite[1024];
+
+    // Guarded by lock
+    private static final Map<AllocationSite, AllocationSite> registered = new HashMap<>();
+    private static int next;
+
+    private AllocationSites(){
+    }
+
+    /**
+     * @param id a site id passed to the recorder
+     * @return the site, or null if the id isn't one
+     */
+    public static AllocationSite get(final int id) {
+        final AllocationSite[] current = sites;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    /**
+     * Register a site, giving it an id.
+     *
+     * @param className the internal name of the class the site is in
+     * @param methodName the method the site is in
+     * @param methodDesc the descriptor of the method the site is in
+     * @param ordinal how many allocating instructions come before the site's in the method
+     * @param line the site's line number, or -1 if the class has no line numbers
+     * @param typeName the type allocated, or null if it's only known when the allocation happens
+     * @return the site
+     */
+    public static AllocationSite register(final String className, final String methodName, final String methodDesc,
+                                          final int ordinal, final int line, final String typeName) {
+        final AllocationSite site = new AllocationSite(AllocationSite.UNKNOWN, className, methodName, methodDesc,
+                ordinal, line, typeName);
+        synchronized (lock) {
+            final AllocationSite existing = registered.get(site);
+            if (existing != null) {
+                return existing;
+            }
+            return add(next++, site);
+        }
+    }
+
+    /**
+     * Register sites read from the InstrumentedClassCache, whose ids were given out in another JVM. A site
+     * keeps its id when it's free in this JVM; a site registered already keeps the id it has, and one whose
+     * id belongs to another site gets a new id.
+     *
+     * @param claimed the sites of one class, with the ids compiled into the cached class
+     * @return the sites with their ids in this JVM, in the same order
+     */
+    static List<AllocationSite> claim(final List<AllocationSite> claimed) {
+        final List<AllocationSite> claims = new ArrayList<>(claimed.size());
+        synchronized (lock) {
+            for (AllocationSite site : claimed) {
+                final AllocationSite existing = registered.get(site);
+                if (existing != null) {
+                    claims.add(existing);
+                } else if (get(site.getId()) == null) {
+                    // New sites get ids above any a cached class uses
+                    next = Math.max(next, site.getId() + 1);
+                    claims.add(add(site.getId(), site));
+                } else {
+                    claims.add(add(next++, site));
+                }
+            }
+        }
+        return claims;
+    }
+
+    // Call with the lock held
+    private static AllocationSite add(final int id, final AllocationSite site) {
+        final AllocationSite added = new AllocationSite(id, site.getClassName(), site.getMethodName(),
+                site.getMethodDesc(), site.getOrdinal(), site.getLine(), site.getTypeName());
+        put(added);
+        return added;
+    }
+
+    // Call with the lock held
+    private static void put(final AllocationSite site) {
+        AllocationSite[] current = sites;
+        if (site.getId() >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, site.getId() + 1));
+        }
+        current[site.getId()] = site;
+        registered.put(site, site);
+        sites = current;
+    }
+}
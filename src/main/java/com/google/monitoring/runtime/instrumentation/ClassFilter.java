@@ -0,0 +1,111 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which classes get instrumented from include and exclude prefixes of their internal names, like
+ * "com/example/" for a package and everything under it. The prefixes are kept in a trie, so checking a
+ * class walks its name once however many prefixes there are.
+ *
+ * The longest prefix that matches a name decides, so a package can be excluded inside an included one
+ * and a class included again inside that. A prefix that is both included and excluded is excluded.
+ */
+class ClassFilter {
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final Node root = new Node();
+    private final byte unmatched;
+
+    /**
+     * @param includes prefixes of classes to instrument, with either '.' or '/' between names
+     * @param excludes prefixes of classes not to instrument
+     * @param includeUnmatched whether to instrument classes no prefix matches
+     */
+    ClassFilter(final List<String> includes, final List<String> excludes, final boolean includeUnmatched) {
+        this.unmatched = includeUnmatched ? INCLUDE : EXCLUDE;
+        for (String prefix : includes) {
+            add(prefix, INCLUDE);
+        }
+        for (String prefix : excludes) {
+            add(prefix, EXCLUDE);
+        }
+    }
+
+    /**
+     * @param className the class's internal name, like java/lang/String
+     * @return true if the class should be instrumented
+     */
+    boolean accepts(final String className) {
+        byte verdict = unmatched;
+        Node node = root;
+        for (int i = 0; i < className.length() && node != null; i++) {
+            node = node.child(className.charAt(i));
+            if (node != null && node.verdict != NONE) {
+                verdict = node.verdict;
+            }
+        }
+        return verdict == INCLUDE;
+    }
+
+    /**
+     * Split a comma separated property value into prefixes.
+     *
+     * @param value the property value, or null
+     * @return the non-empty prefixes
+     */
+    static List<String> parse(final String value) {
+        final List<String> prefixes = new ArrayList<>();
+        if (value != null) {
+            for (String prefix : value.split(",")) {
+                if (!prefix.trim().isEmpty()) {
+                    prefixes.add(prefix.trim());
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    private void add(final String prefix, final byte verdict) {
+        final String internalName = prefix.replace('.', '/');
+        Node node = root;
+        for (int i = 0; i < internalName.length(); i++) {
+            node = node.childOrCreate(internalName.charAt(i));
+        }
+        if (node.verdict != EXCLUDE) {
+            node.verdict = verdict;
+        }
+    }
+
+    // Most nodes have one or two children, so they're kept in small arrays searched in order
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private byte verdict = NONE;
+
+        Node child(final char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node childOrCreate(final char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                final int length = keys.length;
+                keys = Arrays.copyOf(keys, length + 1);
+                children = Arrays.copyOf(children, length + 1);
+                keys[length] = key;
+                children[length] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Retransforms the classes that are already loaded, in batches of a bounded size. Only classes the
+ * instrumenter would rewrite are retransformed. When a batch fails its classes are retried one at a time,
+ * so one class that can't be retransformed doesn't keep the rest of its batch from being instrumented.
+ *
+ * Started as a thread it waits until sampling starts before retransforming, so the JVM gets to startup
+ * without paying for it.
+ */
+class ClassRetransformer extends Thread {
+    private final Instrumentation inst;
+    private final int batchSize;
+    private final long startTime;
+
+    /**
+     * @param inst the JVM's Instrumentation
+     * @param batchSize the most classes to pass to one retransformClasses call
+     * @param startTime when the thread starts retransforming, in epoch millis
+     */
+    ClassRetransformer(final Instrumentation inst, final int batchSize, final long startTime) {
+        super("allocation-retransformer");
+        this.inst = inst;
+        this.batchSize = Math.max(1, batchSize);
+        this.startTime = startTime;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        long wait;
+        while ((wait = startTime - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        retransformLoadedClasses();
+    }
+
+    /**
+     * Retransform the loaded classes on the calling thread. Stops between batches if the thread is
+     * interrupted.
+     */
+    void retransformLoadedClasses() {
+        final List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            if (inst.isModifiableClass(loaded) &&
+                    AllocationInstrumenter.canRewriteClass(loaded.getName().replace('.', '/'), loaded.getClassLoader())) {
+                classes.add(loaded);
+            }
+        }
+
+        final long start = System.nanoTime();
+        long slowestBatch = 0;
+        int batches = 0;
+        int failed = 0;
+        for (int from = 0; from < classes.size() && !Thread.currentThread().isInterrupted(); from += batchSize) {
+            final List<Class<?>> batch = classes.subList(from, Math.min(from + batchSize, classes.size()));
+            final long batchStart = System.nanoTime();
+            failed += retransform(batch);
+            final long batchNanos = System.nanoTime() - batchStart;
+            slowestBatch = Math.max(slowestBatch, batchNanos);
+            batches++;
+            AllocationInstrumenter.logger.log(Level.FINE, "Retransformed a batch of {0} classes in {1} ms",
+                    new Object[]{batch.size(), TimeUnit.NANOSECONDS.toMillis(batchNanos)});
+        }
+
+        System.out.println("Retransformed " + classes.size() + " loaded classes in " + batches + " batches in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, slowest batch " +
+                TimeUnit.NANOSECONDS.toMillis(slowestBatch) + " ms, " + failed + " failed");
+    }
+
+    // Returns how many of the classes couldn't be retransformed
+    private int retransform(final List<Class<?>> batch) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            return 0;
+        } catch (Exception | LinkageError | InternalError e) {
+            if (batch.size() == 1) {
+                AllocationInstrumenter.logger.log(Level.FINE, "Unable to retransform " + batch.get(0).getName(), e);
+                return 1;
+            }
+        }
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            failed += retransform(batch.subList(i, i + 1));
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,64 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gates sampling on a flag file: while the file is missing nothing is sampled. The file is checked every
+ * refresh interval on this thread and the result is handed to AllocationRecorder, so allocating threads
+ * only read a volatile and a disabled profiler captures no stacks at all.
+ *
+ * The gate is separate from the switch AllocationProfiler starts and stops, and sampling needs both on.
+ * AllocationProfiler only watches the file for the flame recorder.
+ */
+class FlagFileWatcher extends Thread {
+    private final File flag;
+    private final long refreshNanos;
+    private boolean exists;
+
+    /**
+     * @param path the flag file
+     * @param refreshMs how often to check it
+     */
+    FlagFileWatcher(final String path, final long refreshMs) {
+        super("allocation-flag-watcher");
+        this.flag = new File(path);
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, refreshMs));
+        setDaemon(true);
+        // Start from the file's current state rather than sampling until the first refresh
+        exists = exists();
+        AllocationRecorder.setFlagFilePresent(exists);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            LockSupport.parkNanos(this, refreshNanos);
+            final boolean existsNow = exists();
+            if (existsNow != exists) {
+                exists = existsNow;
+                AllocationRecorder.setFlagFilePresent(exists);
+            }
+        }
+    }
+
+    /**
+     * Stop watching and lift the gate, when the recorder it gates is replaced or the agent detaches.
+     *
+     * @throws InterruptedException if interrupted waiting for the thread to stop
+     */
+    void finish() throws InterruptedException {
+        interrupt();
+        join();
+        AllocationRecorder.setFlagFilePresent(true);
+    }
+
+    private boolean exists() {
+        try {
+            return flag.exists();
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+}
@@ -12,11 +12,31 @@ public interface InstrumentationProperties {
     String RECORD_SIZE_PROPERTY = "record.size";
     String OUTPUT_PATH_PROPERTY = "output.file";
     String VERBOSITY_LEVEL_PROPERTY = "stack.trace.verbosity";
+    String BUFFER_SIZE_PROPERTY = "buffer.size";
+    String MAX_STACK_DEPTH_PROPERTY = "stack.max.depth";
+    String STACK_SKIP_FRAMES_PROPERTY = "stack.skip.frames";
+    String OUTPUT_FORMAT_PROPERTY = "output.format";
+    String COLLAPSE_INTERVAL_SECS_PROPERTY = "collapse.interval.secs";
+    String MMAP_OUTPUT_PROPERTY = "output.mmap";
+    String SEGMENT_BYTES_PROPERTY = "output.segment.bytes";
+    String FLAG_FILE_PROPERTY = "flag.file";
+    String FLAG_REFRESH_MS_PROPERTY = "flag.refresh.ms";
+    String JMX_ENABLED_PROPERTY = "jmx.enabled";
+    String RETRANSFORM_BATCH_SIZE_PROPERTY = "retransform.batch.size";
+    String RETRANSFORM_ASYNC_PROPERTY = "retransform.async";
+    String INSTRUMENT_CACHE_DIR_PROPERTY = "instrument.cache.dir";
+    String INCLUDE_PACKAGES_PROPERTY = "include.packages";
+    String EXCLUDE_PACKAGES_PROPERTY = "exclude.packages";
+    String INSTRUMENT_COVERAGE_PROPERTY = "instrument.coverage";
+    String ESCAPE_TRAINING_FILE_PROPERTY = "escape.training.file";
+    String ESCAPE_TRAINING_MIN_ELIDED_PROPERTY = "escape.training.min.elided";
+    String ESCAPE_SKIP_FILE_PROPERTY = "escape.skip.file";
 
     String SAMPLE_STRATEGY_PROPERTY = "sample.strategy";
     String DELAY_SECS_PROPERTY = "sample.delay.secs";
     String SAMPLE_RATE_PROPERTY = "sample.rate";
     String SAMPLE_INTERVAL_PROPERTY = "sample.interval.ms";
+    String SAMPLE_BYTES_PROPERTY = "sample.bytes";
 
 
     // DEFAULTS
@@ -24,11 +44,32 @@ public interface InstrumentationProperties {
     boolean DEFAULT_RECORD_SIZE = true;
     String DEFAULT_OUTPUT_PATH = "/tmp/stacks.txt";
     EventParser.VerbosityLevel DEFAULT_VERBOSITY_LEVEL = EventParser.VerbosityLevel.METHOD_CLASS_NAME;
+    int DEFAULT_BUFFER_SIZE = 1024;
+    int DEFAULT_MAX_STACK_DEPTH = 0;
+    String DEFAULT_STACK_SKIP_FRAMES = "sun.reflect.,jdk.internal.reflect.,java.lang.reflect.Method,java.lang.invoke.," +
+            "com.sun.proxy.,jdk.proxy,*$$Lambda,*$$EnhancerBySpringCGLIB$$,*$$FastClassBySpringCGLIB$$";
+    EventParser.OutputFormat DEFAULT_OUTPUT_FORMAT = EventParser.OutputFormat.TEXT;
+    long DEFAULT_COLLAPSE_INTERVAL_SECS = 60L;
+    boolean DEFAULT_MMAP_OUTPUT = false;
+    int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    String DEFAULT_FLAG_FILE = "/tmp/allocation.flag";
+    long DEFAULT_FLAG_REFRESH_MS = 500L;
+    boolean DEFAULT_JMX_ENABLED = true;
+    int DEFAULT_RETRANSFORM_BATCH_SIZE = 1000;
+    boolean DEFAULT_RETRANSFORM_ASYNC = false;
+    String DEFAULT_INSTRUMENT_CACHE_DIR = "";
+    String DEFAULT_INCLUDE_PACKAGES = "";
+    String DEFAULT_EXCLUDE_PACKAGES = "";
+    String DEFAULT_INSTRUMENT_COVERAGE = "int,multiArray,reflection";
+    String DEFAULT_ESCAPE_TRAINING_FILE = "";
+    long DEFAULT_ESCAPE_TRAINING_MIN_ELIDED = 10_000L;
+    String DEFAULT_ESCAPE_SKIP_FILE = "";
 
     String DEFAULT_SAMPLE_STRATEGY = "allocationCount";
     long DEFAULT_DELAY_SECS = 0L;
     long DEFAULT_SAMPLE_RATE = 10_000L;
     long DEFAULT_SAMPLE_INTERVAL = 10L;
+    long DEFAULT_SAMPLE_BYTES = 512 * 1024L;
 
 
     // ACCESS METHODS
@@ -36,9 +77,29 @@ public interface InstrumentationProperties {
     boolean recordSize();
     String outputPath();
     EventParser.VerbosityLevel verbosityLevel();
+    int bufferSize();
+    int maxStackDepth();
+    String stackSkipFrames();
+    EventParser.OutputFormat outputFormat();
+    long collapseIntervalSecs();
+    boolean mmapOutput();
+    int segmentBytes();
+    String flagFile();
+    long flagRefreshMs();
+    boolean jmxEnabled();
+    int retransformBatchSize();
+    boolean retransformAsync();
+    String instrumentCacheDir();
+    String includePackages();
+    String excludePackages();
+    String instrumentCoverage();
+    String escapeTrainingFile();
+    long escapeTrainingMinElided();
+    String escapeSkipFile();
 
     String sampleStrategy();
     long delaySecs();
     long sampleRate();
     long sampleInterval();
+    long sampleBytes();
 }
@@ -12,28 +12,100 @@ import java.util.Properties;
  */
 public class InstrumentationPropertiesImpl implements InstrumentationProperties {
 
+    // What the values below were loaded from, so a changed copy can be made
+    private final Properties properties;
+
     private final String recorder;
     private final boolean recordSize;
     private final String outputPath;
     private final EventParser.VerbosityLevel verbosityLevel;
+    private final int bufferSize;
+    private final int maxStackDepth;
+    private final String stackSkipFrames;
+    private final EventParser.OutputFormat outputFormat;
+    private final long collapseIntervalSecs;
+    private final boolean mmapOutput;
+    private final int segmentBytes;
+    private final String flagFile;
+    private final long flagRefreshMs;
+    private final boolean jmxEnabled;
+    private final int retransformBatchSize;
+    private final boolean retransformAsync;
+    private final String instrumentCacheDir;
+    private final String includePackages;
+    private final String excludePackages;
+    private final String instrumentCoverage;
+    private final String escapeTrainingFile;
+    private final long escapeTrainingMinElided;
+    private final String escapeSkipFile;
 
     private final String sampleStrategy;
     private final long delaySecs;
     private final long sampleRate;
     private final long sampleInterval;
+    private final long sampleBytes;
 
     public InstrumentationPropertiesImpl(final String filePath){
-        final Properties properties = loadProperties(filePath);
+        this(loadProperties(filePath));
+    }
+
+    InstrumentationPropertiesImpl(final Properties properties){
+        this.properties = properties;
 
         recorder = loadString(properties, RECORDER_PROPERTY, DEFAULT_RECORDER);
         recordSize = loadBoolean(properties, RECORD_SIZE_PROPERTY, DEFAULT_RECORD_SIZE);
         outputPath = loadString(properties, OUTPUT_PATH_PROPERTY, DEFAULT_OUTPUT_PATH);
         verbosityLevel = loadVerbosity(properties, VERBOSITY_LEVEL_PROPERTY, DEFAULT_VERBOSITY_LEVEL);
+        bufferSize = (int) loadLong(properties, BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE);
+        maxStackDepth = (int) loadLong(properties, MAX_STACK_DEPTH_PROPERTY, DEFAULT_MAX_STACK_DEPTH);
+        stackSkipFrames = loadString(properties, STACK_SKIP_FRAMES_PROPERTY, DEFAULT_STACK_SKIP_FRAMES);
+        outputFormat = loadOutputFormat(properties, OUTPUT_FORMAT_PROPERTY, DEFAULT_OUTPUT_FORMAT);
+        collapseIntervalSecs = loadLong(properties, COLLAPSE_INTERVAL_SECS_PROPERTY, DEFAULT_COLLAPSE_INTERVAL_SECS);
+        mmapOutput = loadBoolean(properties, MMAP_OUTPUT_PROPERTY, DEFAULT_MMAP_OUTPUT);
+        segmentBytes = (int) loadLong(properties, SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES);
+        flagFile = loadString(properties, FLAG_FILE_PROPERTY, DEFAULT_FLAG_FILE);
+        flagRefreshMs = loadLong(properties, FLAG_REFRESH_MS_PROPERTY, DEFAULT_FLAG_REFRESH_MS);
+        jmxEnabled = loadBoolean(properties, JMX_ENABLED_PROPERTY, DEFAULT_JMX_ENABLED);
+        retransformBatchSize = (int) loadLong(properties, RETRANSFORM_BATCH_SIZE_PROPERTY, DEFAULT_RETRANSFORM_BATCH_SIZE);
+        retransformAsync = loadBoolean(properties, RETRANSFORM_ASYNC_PROPERTY, DEFAULT_RETRANSFORM_ASYNC);
+        instrumentCacheDir = loadString(properties, INSTRUMENT_CACHE_DIR_PROPERTY, DEFAULT_INSTRUMENT_CACHE_DIR);
+        includePackages = loadString(properties, INCLUDE_PACKAGES_PROPERTY, DEFAULT_INCLUDE_PACKAGES);
+        excludePackages = loadString(properties, EXCLUDE_PACKAGES_PROPERTY, DEFAULT_EXCLUDE_PACKAGES);
+        instrumentCoverage = loadString(properties, INSTRUMENT_COVERAGE_PROPERTY, DEFAULT_INSTRUMENT_COVERAGE);
+        escapeTrainingFile = loadString(properties, ESCAPE_TRAINING_FILE_PROPERTY, DEFAULT_ESCAPE_TRAINING_FILE);
+        escapeTrainingMinElided = loadLong(properties, ESCAPE_TRAINING_MIN_ELIDED_PROPERTY, DEFAULT_ESCAPE_TRAINING_MIN_ELIDED);
+        escapeSkipFile = loadString(properties, ESCAPE_SKIP_FILE_PROPERTY, DEFAULT_ESCAPE_SKIP_FILE);
 
         sampleStrategy = loadString(properties, SAMPLE_STRATEGY_PROPERTY, DEFAULT_SAMPLE_STRATEGY);
         delaySecs = loadLong(properties, DELAY_SECS_PROPERTY, DEFAULT_DELAY_SECS);
         sampleRate = loadLong(properties, SAMPLE_RATE_PROPERTY, DEFAULT_SAMPLE_RATE);
         sampleInterval = loadLong(properties, SAMPLE_INTERVAL_PROPERTY, DEFAULT_SAMPLE_INTERVAL);
+        sampleBytes = loadLong(properties, SAMPLE_BYTES_PROPERTY, DEFAULT_SAMPLE_BYTES);
+    }
+
+    /**
+     * Get a copy of these properties with one of them changed.
+     *
+     * @param propertyName the property to change
+     * @param value its new value
+     * @return the changed properties
+     */
+    InstrumentationPropertiesImpl with(final String propertyName, final String value){
+        final Properties changed = new Properties();
+        changed.putAll(properties);
+        changed.setProperty(propertyName, value);
+        return new InstrumentationPropertiesImpl(changed);
+    }
+
+    /**
+     * Get a property as it was written, rather than parsed.
+     *
+     * @param propertyName the property
+     * @param defaultValue what to return if it isn't set
+     * @return the property's value
+     */
+    String getRaw(final String propertyName, final String defaultValue){
+        return properties.getProperty(propertyName, defaultValue);
     }
 
     private EventParser.VerbosityLevel loadVerbosity(Properties properties, String propertyName, EventParser.VerbosityLevel defaultValue) {
@@ -50,6 +122,22 @@ public class InstrumentationPropertiesImpl implements InstrumentationProperties
         }
     }
 
+    private EventParser.OutputFormat loadOutputFormat(Properties properties, String propertyName, EventParser.OutputFormat defaultValue) {
+        final String format = properties.getProperty(propertyName,"");
+        switch (format){
+            case "text":
+                return EventParser.OutputFormat.TEXT;
+            case "interned":
+                return EventParser.OutputFormat.INTERNED;
+            case "collapsed":
+                return EventParser.OutputFormat.COLLAPSED;
+            case "binary":
+                return EventParser.OutputFormat.BINARY;
+            default:
+                return defaultValue;
+        }
+    }
+
     private static String loadString(final Properties properties, final String propertyName, final String defaultValue){
         final String value = properties.getProperty(propertyName);
         if (value != null){
@@ -115,6 +203,101 @@ public class InstrumentationPropertiesImpl implements InstrumentationProperties
         return verbosityLevel;
     }
 
+    @Override
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public int maxStackDepth() {
+        return maxStackDepth;
+    }
+
+    @Override
+    public String stackSkipFrames() {
+        return stackSkipFrames;
+    }
+
+    @Override
+    public EventParser.OutputFormat outputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public long collapseIntervalSecs() {
+        return collapseIntervalSecs;
+    }
+
+    @Override
+    public boolean mmapOutput() {
+        return mmapOutput;
+    }
+
+    @Override
+    public int segmentBytes() {
+        return segmentBytes;
+    }
+
+    @Override
+    public boolean jmxEnabled() {
+        return jmxEnabled;
+    }
+
+    @Override
+    public int retransformBatchSize() {
+        return retransformBatchSize;
+    }
+
+    @Override
+    public boolean retransformAsync() {
+        return retransformAsync;
+    }
+
+    @Override
+    public String instrumentCacheDir() {
+        return instrumentCacheDir;
+    }
+
+    @Override
+    public String includePackages() {
+        return includePackages;
+    }
+
+    @Override
+    public String excludePackages() {
+        return excludePackages;
+    }
+
+    @Override
+    public String instrumentCoverage() {
+        return instrumentCoverage;
+    }
+
+    @Override
+    public String escapeTrainingFile() {
+        return escapeTrainingFile;
+    }
+
+    @Override
+    public long escapeTrainingMinElided() {
+        return escapeTrainingMinElided;
+    }
+
+    @Override
+    public String escapeSkipFile() {
+        return escapeSkipFile;
+    }
+
+    @Override
+    public String flagFile() {
+        return flagFile;
+    }
+
+    @Override
+    public long flagRefreshMs() {
+        return flagRefreshMs;
+    }
+
     @Override
     public String sampleStrategy() {
         return sampleStrategy;
@@ -134,4 +317,9 @@ public class InstrumentationPropertiesImpl implements InstrumentationProperties
     public long sampleInterval() {
         return sampleInterval;
     }
+
+    @Override
+    public long sampleBytes() {
+        return sampleBytes;
+    }
 }
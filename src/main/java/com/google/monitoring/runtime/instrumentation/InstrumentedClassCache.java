@@ -0,0 +1,251 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationSiteScanner;
+import com.google.monitoring.runtime.instrumentation.adapters.InstrumentationOptions;
+import com.google.monitoring.runtime.instrumentation.adapters.PassthroughClassAdapter;
+import com.google.monitoring.runtime.instrumentation.adapters.SiteIdAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+/**
+ * An on-disk cache of instrumented classes, so a JVM restarting with the same classes and the same agent
+ * doesn't rewrite them again. Entries are keyed by a murmur3 hash of the original class bytes together with
+ * everything else the rewrite depends on: the agent's own rewriting classes, the recorder method, whether
+ * allocation sites count down inline, which kinds of allocation are instrumented and the escape skip list.
+ * A new build of the agent therefore never reads an older build's entries.
+ *
+ * A class whose rewrite doesn't change it is stored as an empty entry. Other entries start with the class's
+ * allocation sites, whose ids are compiled into it. A JVM reading the entry claims those ids in its
+ * AllocationSites; where a site ends up with another id, the ids the class passes to the recorder are
+ * changed to match, which leaves its frames as they are. Stack map frames are computed from the class
+ * hierarchy seen when the class was first rewritten, so delete the directory when a library changes a
+ * superclass without changing its subclasses.
+ *
+ * The cache runs in the middle of loading classes, so the classes a transform loads through it must never be
+ * instrumented themselves. Guava's murmur3 hashing is loaded by the constructor, which hashes the
+ * configuration, before the cache is first used. Guava and ASM, which changes site ids, are relocated into
+ * the agent's package, which the agent never rewrites. java.io, java.util and java.util.logging are loaded
+ * by the JVM and the agent before the transformer is added.
+ */
+class InstrumentedClassCache {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    // The classes whose code decides what a class is rewritten to
+    private static final String[] REWRITERS = {
+            "com/google/monitoring/runtime/instrumentation/AllocationInstrumenter",
+            "com/google/monitoring/runtime/instrumentation/StaticClassWriter",
+            "com/google/monitoring/runtime/instrumentation/adapters/AllocationClassAdapter",
+            "com/google/monitoring/runtime/instrumentation/adapters/AllocationKind",
+            "com/google/monitoring/runtime/instrumentation/adapters/AllocationMethodAdapter",
+            "com/google/monitoring/runtime/instrumentation/adapters/AllocationSiteScanner",
+            "com/google/monitoring/runtime/instrumentation/adapters/InstrumentationOptions",
+            "com/google/monitoring/runtime/instrumentation/adapters/PassthroughClassAdapter",
+            "com/google/monitoring/runtime/instrumentation/adapters/VerifyingClassAdapter",
+    };
+
+    private final File directory;
+    private final InstrumentationOptions options;
+    private final byte[] configuration;
+    // Keeps this JVM's temporary files apart from those of other JVMs sharing the directory
+    private final String temporarySuffix = "." + System.nanoTime() + ".";
+
+    /**
+     * @param directory where entries are kept, created if it doesn't exist
+     * @param options how classes are instrumented
+     */
+    InstrumentedClassCache(final String directory, final InstrumentationOptions options) {
+        this.directory = new File(directory);
+        this.options = options;
+        final Hasher hasher = HASH.newHasher();
+        for (String rewriter : REWRITERS) {
+            hasher.putBytes(classBytes(rewriter));
+        }
+        hasher.putUnencodedChars(options.getRecorderClass() + "." + options.getRecorderMethod());
+        hasher.putBoolean(options.isInlineSampling());
+        for (AllocationKind kind : options.getCoverage()) {
+            hasher.putInt(kind.ordinal());
+        }
+        for (String key : new TreeSet<>(options.getSkipSites())) {
+            hasher.putUnencodedChars(key);
+        }
+        this.configuration = hasher.hash().asBytes();
+    }
+
+    /**
+     * @param original the bytes the class was loaded from
+     * @return the key of the class's entry
+     */
+    String key(final byte[] original) {
+        final HashCode hash = HASH.newHasher()
+                .putBytes(configuration)
+                .putBytes(original)
+                .hash();
+        return hash.toString();
+    }
+
+    /**
+     * Look up a class.
+     *
+     * @param key the class's key
+     * @param original the bytes the class was loaded from
+     * @return the instrumented class, the original bytes if instrumenting doesn't change it, or null if it
+     * isn't cached
+     */
+    byte[] get(final String key, final byte[] original) {
+        final File entry = entry(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            final byte[] bytes = read(entry);
+            if (bytes.length == 0) {
+                return original;
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            final int count = in.readInt();
+            final List<AllocationSite> sites = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int id = in.readInt();
+                final String className = in.readUTF();
+                final String methodName = in.readUTF();
+                final String methodDesc = in.readUTF();
+                final int ordinal = in.readInt();
+                final int line = in.readInt();
+                final String typeName = in.readBoolean() ? in.readUTF() : null;
+                sites.add(new AllocationSite(id, className, methodName, methodDesc, ordinal, line, typeName));
+            }
+            final byte[] instrumented = new byte[in.available()];
+            in.readFully(instrumented);
+            final List<AllocationSite> claims = AllocationSites.claim(sites);
+            final Map<Integer, Integer> ids = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                if (claims.get(i).getId() != sites.get(i).getId()) {
+                    ids.put(sites.get(i).getId(), claims.get(i).getId());
+                }
+            }
+            return ids.isEmpty() ? instrumented : changeSiteIds(instrumented, ids);
+        } catch (IOException e) {
+            AllocationInstrumenter.logger.log(Level.FINE, "Unable to read cached class " + entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a class. The entry is written to a temporary file and renamed into place, so JVMs sharing the
+     * directory never read a partial entry.
+     *
+     * @param key the class's key
+     * @param original the bytes the class was loaded from
+     * @param instrumented what instrument() returned for them
+     * @param sites the allocation sites instrument() registered for them
+     */
+    void put(final String key, final byte[] original, final byte[] instrumented, final List<AllocationSite> sites) {
+        final File entry = entry(key);
+        final File temporary = new File(entry.getParentFile(), key + temporarySuffix + Thread.currentThread().getId() + ".tmp");
+        try {
+            if (!entry.getParentFile().isDirectory() && !entry.getParentFile().mkdirs()) {
+                throw new IOException("Unable to create " + entry.getParentFile());
+            }
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                if (instrumented != original) {
+                    out.writeInt(sites.size());
+                    for (AllocationSite site : sites) {
+                        out.writeInt(site.getId());
+                        out.writeUTF(site.getClassName());
+                        out.writeUTF(site.getMethodName());
+                        out.writeUTF(site.getMethodDesc());
+                        out.writeInt(site.getOrdinal());
+                        out.writeInt(site.getLine());
+                        out.writeBoolean(site.getTypeName() != null);
+                        if (site.getTypeName() != null) {
+                            out.writeUTF(site.getTypeName());
+                        }
+                    }
+                    out.write(instrumented);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(entry)) {
+                throw new IOException("Unable to rename " + temporary + " to " + entry);
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            AllocationInstrumenter.logger.log(Level.FINE, "Unable to cache class " + entry, e);
+        }
+    }
+
+    // Only the methods with allocation sites pass ids to the recorder; the
+    // rest are copied as they are.
+    private byte[] changeSiteIds(final byte[] instrumented, final Map<Integer, Integer> ids) {
+        final ClassReader cr = new ClassReader(instrumented);
+        final ClassWriter cw = new ClassWriter(cr, 0);
+        final AllocationSiteScanner scanned = AllocationSiteScanner.scan(cr, options);
+        cr.accept(new PassthroughClassAdapter(new SiteIdAdapter(cw, options, ids), cw, scanned), 0);
+        return cw.toByteArray();
+    }
+
+    // Entries are spread over subdirectories named by the first two digits of the key
+    private File entry(final String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + ".class");
+    }
+
+    private static byte[] classBytes(final String className) {
+        final InputStream in = ClassLoader.getSystemResourceAsStream(className + ".class");
+        if (in == null) {
+            // Fall back to the name; entries then survive a rebuild of the agent, so clear the directory
+            return className.getBytes();
+        }
+        try {
+            try {
+                return readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return className.getBytes();
+        }
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
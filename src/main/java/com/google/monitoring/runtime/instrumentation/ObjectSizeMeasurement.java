@@ -4,8 +4,10 @@ import com.google.common.collect.ForwardingMap;
 import com.google.common.collect.MapMaker;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -64,10 +66,20 @@ public class ObjectSizeMeasurement {
                 }
             };
 
+    // The length of the arrays measured to find an element's size
+    private static final int LAYOUT_PROBE_LENGTH = 64;
+
+    // Objects are aligned to this many bytes
+    private static final long OBJECT_ALIGNMENT = 8;
+
+    // The size of an empty array and of each element, by element type; every array of references is
+    // laid out like an Object[]
+    private static final ConcurrentMap<Class<?>, long[]> arrayLayouts = new ConcurrentHashMap<>();
 
     /**
-     * Returns the size of the given object. If the object is not an array, we
-     * check the cache first, and update it as necessary.
+     * Returns the size of the given object. Arrays are sized from their length
+     * and element type, and other objects from the cached size of their class,
+     * so the JVM is only asked the first time a class or element type is seen.
      *
      * @param obj     the object.
      * @param isArray indicates if the given object is an array.
@@ -76,7 +88,7 @@ public class ObjectSizeMeasurement {
      */
     public static long getObjectSize(final Object obj, final boolean isArray, final Instrumentation instr) {
         if (isArray) {
-            return instr.getObjectSize(obj);
+            return getArraySize(obj.getClass().getComponentType(), Array.getLength(obj), instr);
         }
 
         final Class<?> clazz = obj.getClass();
@@ -88,4 +100,28 @@ public class ObjectSizeMeasurement {
 
         return classSize;
     }
+
+    /**
+     * Returns the size of an array without asking the JVM to measure it. The
+     * size of an empty array and of an element are measured once per element
+     * type; if the array header isn't a multiple of the alignment this
+     * overestimates by up to the padding.
+     *
+     * @param componentType the type of the array's elements
+     * @param length        the length of the array
+     * @param instr         the instrumentation object used to measure the layout
+     * @return the size of the array
+     */
+    public static long getArraySize(final Class<?> componentType, final int length, final Instrumentation instr) {
+        final Class<?> elementType = componentType.isPrimitive() ? componentType : Object.class;
+        long[] layout = arrayLayouts.get(elementType);
+        if (layout == null) {
+            final long empty = instr.getObjectSize(Array.newInstance(elementType, 0));
+            final long probe = instr.getObjectSize(Array.newInstance(elementType, LAYOUT_PROBE_LENGTH));
+            layout = new long[]{empty, (probe - empty) / LAYOUT_PROBE_LENGTH};
+            arrayLayouts.put(elementType, layout);
+        }
+        final long size = layout[0] + length * layout[1];
+        return (size + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
 }
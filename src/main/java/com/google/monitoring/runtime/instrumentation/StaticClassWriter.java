@@ -38,13 +38,15 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
+import com.google.common.collect.MapMaker;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A {@link ClassWriter} that looks for static class data in the
@@ -58,6 +60,12 @@ import java.io.IOException;
  * ClassLoader's resources (usually the classpath) if the class it
  * needs hasn't been loaded yet.
  *
+ * <p>Both the hierarchy read from the class files and the common
+ * superclasses worked out from it are cached per class loader, so
+ * computing the frames of a large class, or of many classes sharing a
+ * hierarchy, reads each class file once.  The caches are weakly keyed
+ * by the loader and go away with it.
+ *
  * <p>This class was heavily influenced by ASM's
  * org.objectweb.asm.util.ClassWriterComputeFramesTest, which contains
  * the same logic in a subclass.  The code here has been slightly
@@ -67,9 +75,20 @@ import java.io.IOException;
  */
 class StaticClassWriter extends ClassWriter {
 
+    // The hierarchy seen by each class loader.  The bootstrap loader
+    // can't be a key, so it has its own.
+    private static final ConcurrentMap<ClassLoader, Hierarchy> hierarchies =
+            new MapMaker().weakKeys().makeMap();
+    private static final Hierarchy bootstrapHierarchy = new Hierarchy();
+
     /* The classloader that we use to look for the unloaded class */
     private final ClassLoader classLoader;
     private final ClassReader classReader;
+    private final Hierarchy hierarchy;
+
+    // Set when classInfo() had to guess because a class file couldn't be
+    // found, so that nothing worked out from the guess is cached.
+    private boolean guessed;
 
     /**
      * {@inheritDoc}
@@ -81,6 +100,22 @@ class StaticClassWriter extends ClassWriter {
         super(classReader, flags);
         this.classReader = classReader;
         this.classLoader = classLoader;
+        this.hierarchy = hierarchyOf(classLoader);
+    }
+
+    private static Hierarchy hierarchyOf(final ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapHierarchy;
+        }
+        Hierarchy hierarchy = hierarchies.get(loader);
+        if (hierarchy == null) {
+            final Hierarchy created = new Hierarchy();
+            hierarchy = hierarchies.putIfAbsent(loader, created);
+            if (hierarchy == null) {
+                hierarchy = created;
+            }
+        }
+        return hierarchy;
     }
 
     /**
@@ -88,6 +123,19 @@ class StaticClassWriter extends ClassWriter {
      */
     @Override
     protected String getCommonSuperClass(final String type1, final String type2) {
+        final String pair = type1 + ';' + type2;
+        String common = hierarchy.commonSuperClasses.get(pair);
+        if (common == null) {
+            guessed = false;
+            common = findCommonSuperClass(type1, type2);
+            if (!guessed) {
+                hierarchy.commonSuperClasses.put(pair, common);
+            }
+        }
+        return common;
+    }
+
+    private String findCommonSuperClass(final String type1, final String type2) {
         try {
             return super.getCommonSuperClass(type1, type2);
         } catch (Throwable e) {
@@ -97,15 +145,15 @@ class StaticClassWriter extends ClassWriter {
         // directly from the class file.
         ClassInfo ci1, ci2;
         try {
-            ci1 = new ClassInfo(type1, classLoader, classReader);
-            ci2 = new ClassInfo(type2, classLoader, classReader);
+            ci1 = classInfo(type1);
+            ci2 = classInfo(type2);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
-        if (ci1.isAssignableFrom(ci2)) {
+        if (isAssignableFrom(ci1, ci2)) {
             return type1;
         }
-        if (ci2.isAssignableFrom(ci1)) {
+        if (isAssignableFrom(ci2, ci1)) {
             return type2;
         }
         if (ci1.isInterface() || ci2.isInterface()) {
@@ -115,72 +163,129 @@ class StaticClassWriter extends ClassWriter {
         do {
             // Should never be null, because if ci1 were the Object class
             // or an interface, it would have been caught above.
-            ci1 = ci1.getSuperclass();
-        } while (!ci1.isAssignableFrom(ci2));
-        return ci1.getType().getInternalName();
+            ci1 = superclass(ci1);
+        } while (!isAssignableFrom(ci1, ci2));
+        return ci1.getType();
     }
 
     /**
-     * For a given class, this stores the information needed by the
-     * getCommonSuperClass test.  This determines if the class is
-     * available at runtime, and then, if it isn't, it tries to get the
-     * class file, and extract the appropriate information from that.
+     * Get the hierarchy information of a class, reading its class file
+     * the first time the class is asked for.
      */
-    static class ClassInfo {
-
-        private final Type type;
-        private final ClassLoader loader;
-        private final ClassReader classReader;
-        private final boolean isInterface;
-        private final String superClass;
-        private final String[] interfaces;
-
-        public ClassInfo(final String type, final ClassLoader loader, final ClassReader classReader) {
-            this.classReader = classReader;
-            Class<?> cls = null;
-            // First, see if we can extract the information from the class...
-            try {
-                cls = Class.forName(type);
-            } catch (Exception e) {
-                // failover...
+    ClassInfo classInfo(final String type) {
+        ClassInfo info = hierarchy.classes.get(type);
+        if (info != null) {
+            return info;
+        }
+        try {
+            final ClassReader cr = readClass(type);
+            if (cr == null) {
+                // The class file can't be found.  Fall back to the class being
+                // written, but don't remember the guess.
+                guessed = true;
+                return new ClassInfo(type, classReader);
             }
+            info = new ClassInfo(type, cr);
+        } catch (IllegalArgumentException e) {
+            // The class file is newer than ASM can read, as the JDK's own
+            // classes may be.  Those are always loadable, so ask the class.
+            info = new ClassInfo(type, loadClass(type));
+        }
+        hierarchy.classes.put(type, info);
+        return info;
+    }
 
-            if (cls != null) {
-                this.type = Type.getType(cls);
-                this.loader = loader;
-                this.isInterface = cls.isInterface();
-                this.superClass = cls.getSuperclass().getName();
-                final Class[] ifs = cls.getInterfaces();
-                this.interfaces = new String[ifs.length];
-                for (int i = 0; i < ifs.length; i++) {
-                    this.interfaces[i] = ifs[i].getName();
+    private ClassReader readClass(final String type) {
+        final String fileName = type.replace('.', '/') + ".class";
+        InputStream is = null;
+        try {
+            is = (classLoader == null) ?
+                    ClassLoader.getSystemResourceAsStream(fileName) :
+                    classLoader.getResourceAsStream(fileName);
+            return new ClassReader(is);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (Exception e) {
                 }
-                return;
             }
+        }
+    }
+
+    private Class<?> loadClass(final String type) {
+        try {
+            return Class.forName(type.replace('/', '.'), false, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // The class isn't loaded.  Try to get the class file, and
-            // extract the information from that.
-            this.loader = loader;
-            this.type = Type.getObjectType(type);
-            final String fileName = type.replace('.', '/') + ".class";
-            InputStream is = null;
-            ClassReader cr;
-            try {
-                is = (loader == null) ?
-                        ClassLoader.getSystemResourceAsStream(fileName) :
-                        loader.getResourceAsStream(fileName);
-                cr = new ClassReader(is);
-            } catch (IOException e) {
-                cr = classReader;
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (Exception e) {
-                    }
+    private ClassInfo superclass(final ClassInfo info) {
+        if (info.superClass == null) {
+            return null;
+        }
+        return classInfo(info.superClass);
+    }
+
+    private boolean implementsInterface(final ClassInfo info, final ClassInfo that) {
+        for (ClassInfo c = info; c != null; c = superclass(c)) {
+            for (String name : c.interfaces) {
+                if (name.equals(that.type) ||
+                        implementsInterface(classInfo(name), that)) {
+                    return true;
                 }
             }
+        }
+        return false;
+    }
+
+    private boolean isSubclassOf(final ClassInfo info, final ClassInfo that) {
+        for (ClassInfo ci = info; ci != null; ci = superclass(ci)) {
+            if (that.type.equals(ci.superClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Same as {@link Class#isAssignableFrom(Class)}
+     */
+    boolean isAssignableFrom(final ClassInfo info, final ClassInfo that) {
+        return (info == that ||
+                info.type.equals(that.type) ||
+                isSubclassOf(that, info) ||
+                implementsInterface(that, info) ||
+                (that.isInterface()
+                        && info.type.equals("java/lang/Object")));
+    }
+
+    // What one class loader sees of the class hierarchy
+    private static final class Hierarchy {
+        final ConcurrentMap<String, ClassInfo> classes = new ConcurrentHashMap<>();
+        // Keyed by "type1;type2"
+        final ConcurrentMap<String, String> commonSuperClasses = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * For a given class, this stores the information needed by the
+     * getCommonSuperClass test, extracted from its class file.  The
+     * superclass and interfaces are kept as names and looked up in the
+     * cache as they're needed, so a ClassInfo never holds on to a
+     * class loader.
+     */
+    static class ClassInfo {
+
+        private final String type;
+        private final boolean isInterface;
+        private final String superClass;
+        private final String[] interfaces;
+
+        ClassInfo(final String type, final ClassReader cr) {
+            this.type = type;
             int offset = cr.header;
             isInterface = (cr.readUnsignedShort(offset) & Opcodes.ACC_INTERFACE) != 0;
             final char[] buf = new char[2048];
@@ -200,6 +305,18 @@ class StaticClassWriter extends ClassWriter {
             }
         }
 
+        ClassInfo(final String type, final Class<?> c) {
+            this.type = type;
+            isInterface = c.isInterface();
+            superClass = c.getSuperclass() == null ?
+                    null : c.getSuperclass().getName().replace('.', '/');
+            final Class<?>[] classInterfaces = c.getInterfaces();
+            interfaces = new String[classInterfaces.length];
+            for (int i = 0; i < classInterfaces.length; i++) {
+                interfaces[i] = classInterfaces[i].getName().replace('.', '/');
+            }
+        }
+
         String readConstantPoolString(final ClassReader cr, final int offset, final char[] buf) {
             final int cpIndex = cr.getItem(cr.readUnsignedShort(offset));
             if (cpIndex == 0) {
@@ -209,29 +326,11 @@ class StaticClassWriter extends ClassWriter {
             return cr.readUTF8(cpIndex, buf);
         }
 
-        Type getType() {
-            return type;
-        }
-
-        ClassInfo getSuperclass() {
-            if (superClass == null) {
-                return null;
-            }
-            return new ClassInfo(superClass, loader, classReader);
-        }
-
         /**
-         * Same as {@link Class#getInterfaces()}
+         * @return the internal name of the class
          */
-        ClassInfo[] getInterfaces() {
-            if (interfaces == null) {
-                return new ClassInfo[0];
-            }
-            final ClassInfo[] result = new ClassInfo[interfaces.length];
-            for (int i = 0; i < result.length; ++i) {
-                result[i] = new ClassInfo(interfaces[i], loader, classReader);
-            }
-            return result;
+        String getType() {
+            return type;
         }
 
         /**
@@ -240,39 +339,6 @@ class StaticClassWriter extends ClassWriter {
         boolean isInterface() {
             return isInterface;
         }
-
-        private boolean implementsInterface(final ClassInfo that) {
-            for (ClassInfo c = this; c != null; c = c.getSuperclass()) {
-                for (ClassInfo iface : c.getInterfaces()) {
-                    if (iface.type.equals(that.type) ||
-                            iface.implementsInterface(that)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        }
-
-        private boolean isSubclassOf(final ClassInfo that) {
-            for (ClassInfo ci = this; ci != null; ci = ci.getSuperclass()) {
-                if (ci.getSuperclass() != null &&
-                        ci.getSuperclass().type.equals(that.type)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        /**
-         * Same as {@link Class#isAssignableFrom(Class)}
-         */
-        boolean isAssignableFrom(final ClassInfo that) {
-            return (this == that ||
-                    that.isSubclassOf(this) ||
-                    that.implementsInterface(this) ||
-                    (that.isInterface()
-                            && getType().getDescriptor().equals("Ljava/lang/Object;")));
-        }
     }
 
 }
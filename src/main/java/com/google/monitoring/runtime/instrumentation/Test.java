@@ -1,6 +1,5 @@
 package com.google.monitoring.runtime.instrumentation;
 
-import com.google.monitoring.runtime.instrumentation.adapters.EscapeAnalyzer;
 import com.sun.management.ThreadMXBean;
 
 import java.lang.management.ManagementFactory;
@@ -30,6 +29,7 @@ public class Test {
 //        System.out.println("Elapsed: " + (System.currentTimeMillis() - start));
 
         //-javaagent:target/java-allocation-instrumenter-3.0-SNAPSHOT.jar=flame.properties
+        // With escape.training.file set, the sites in called() are measured by the agent's EscapeAnalyzer
         ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
         long[] thisThread = new long[1];
         thisThread[0] = Thread.currentThread().getId();
@@ -48,12 +48,10 @@ public class Test {
 
         Long val = new Long(5);
         int ip = 111111111;
-        EscapeAnalyzer.start();
         String st = ((ip >> 24) & 0xff)+ "." +
                 ((ip >> 16) & 0xff) + "." +
                 ((ip >> 8) & 0xff) + "." +
                 (ip & 0xff);
-        EscapeAnalyzer.stop("add");
 
         var += val + (st == null ? 0 : 1);
 
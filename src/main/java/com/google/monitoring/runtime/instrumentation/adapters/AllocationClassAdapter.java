@@ -16,12 +16,15 @@
 
 package com.google.monitoring.runtime.instrumentation.adapters;
 
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 
+import java.util.List;
+
 /**
  * Instruments bytecodes that allocateString heap memory to call a recording hook.
  * A <code>ClassVisitor</code> that processes methods with a
@@ -31,15 +34,39 @@ import org.objectweb.asm.commons.JSRInlinerAdapter;
  * @author fischman@google.com (Ami Fischman) (Original Author)
  */
 public class AllocationClassAdapter extends ClassVisitor {
-    private final String recorderClass;
-    private final String recorderMethod;
+    private final InstrumentationOptions options;
+    private final List<AllocationSite> sites;
+    private String className;
 
     public AllocationClassAdapter(final ClassVisitor cv,
                                   final String recorderClass,
                                   final String recorderMethod) {
+        this(cv, InstrumentationOptions.recordingWith(recorderClass, recorderMethod), null);
+    }
+
+    /**
+     * @param options how the class's allocation sites are instrumented
+     * @param sites   if not null, the class's allocation sites are registered
+     *                and added to it, and pass their ids to the recorder, see
+     *                {@link AllocationMethodAdapter#RECORDER_SITE_SIGNATURE}
+     */
+    public AllocationClassAdapter(final ClassVisitor cv,
+                                  final InstrumentationOptions options,
+                                  final List<AllocationSite> sites) {
         super(Opcodes.ASM5, cv);
-        this.recorderClass = recorderClass;
-        this.recorderMethod = recorderMethod;
+        this.options = options;
+        this.sites = sites;
+    }
+
+    @Override
+    public void visit(final int version,
+                      final int access,
+                      final String name,
+                      final String signature,
+                      final String superName,
+                      final String[] interfaces) {
+        className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     /**
@@ -60,7 +87,8 @@ public class AllocationClassAdapter extends ClassVisitor {
             // done for old bytecode that contains JSR and RET instructions.
             // So, we remove JSRs and RETs.
             final JSRInlinerAdapter jsria = new JSRInlinerAdapter(mv, access, base, desc, signature, exceptions);
-            final AllocationMethodAdapter aimv = new AllocationMethodAdapter(jsria, recorderClass, recorderMethod);
+            final AllocationMethodAdapter aimv = new AllocationMethodAdapter(jsria, options, className, base, desc,
+                    sites);
             final LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
             aimv.lvs = lvs;
             mv = lvs;
@@ -0,0 +1,153 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The kinds of allocation {@link AllocationMethodAdapter} can instrument.  Which
+ * ones it does is the instrumenter's coverage, so profiling can be limited to the
+ * kinds of interest and the others cost nothing.  Each kind has the name it goes
+ * by in the properties file.
+ */
+public enum AllocationKind {
+    BOOLEAN_ARRAY("boolean"),
+    CHAR_ARRAY("char"),
+    FLOAT_ARRAY("float"),
+    DOUBLE_ARRAY("double"),
+    BYTE_ARRAY("byte"),
+    SHORT_ARRAY("short"),
+    INT_ARRAY("int"),
+    LONG_ARRAY("long"),
+    /** anewarray */
+    OBJECT_ARRAY("objectArray"),
+    /** new, recorded once the constructor returns */
+    NEW("new"),
+    /** multianewarray */
+    MULTI_ARRAY("multiArray"),
+    /** Object.clone() and the clone() of arrays */
+    CLONE("clone"),
+    /** Array.newInstance(Class, int) */
+    REFLECTION("reflection"),
+    /**
+     * Class.newInstance(), Constructor.newInstance() and
+     * Array.newInstance(Class, int[]), which reflection didn't always cover
+     */
+    REFLECTIVE_NEW("reflectiveNew");
+
+    /**
+     * What has always been instrumented: int arrays, multi-dimensional arrays and
+     * Array.newInstance(Class, int).
+     */
+    public static final Set<AllocationKind> DEFAULT_COVERAGE =
+            Collections.unmodifiableSet(EnumSet.of(INT_ARRAY, MULTI_ARRAY, REFLECTION));
+
+    // NEWARRAY operands T_BOOLEAN (4) to T_LONG (11), in order
+    private static final AllocationKind[] PRIMITIVE_ARRAYS = {
+            BOOLEAN_ARRAY, CHAR_ARRAY, FLOAT_ARRAY, DOUBLE_ARRAY,
+            BYTE_ARRAY, SHORT_ARRAY, INT_ARRAY, LONG_ARRAY
+    };
+
+    private final String propertyName;
+
+    AllocationKind(final String propertyName) {
+        this.propertyName = propertyName;
+    }
+
+    /**
+     * @return the name of the kind in the properties file
+     */
+    public String propertyName() {
+        return propertyName;
+    }
+
+    /**
+     * @return the kind of allocation the instruction makes, or null if it doesn't
+     * allocate
+     */
+    public static AllocationKind ofIntInsn(final int opcode, final int operand) {
+        if (opcode != Opcodes.NEWARRAY || operand < Opcodes.T_BOOLEAN || operand > Opcodes.T_LONG) {
+            return null;
+        }
+        return PRIMITIVE_ARRAYS[operand - Opcodes.T_BOOLEAN];
+    }
+
+    /**
+     * @return the kind of allocation the instruction makes, or null if it doesn't
+     * allocate
+     */
+    public static AllocationKind ofTypeInsn(final int opcode) {
+        if (opcode == Opcodes.NEW) {
+            return NEW;
+        }
+        if (opcode == Opcodes.ANEWARRAY) {
+            return OBJECT_ARRAY;
+        }
+        return null;
+    }
+
+    /**
+     * @return the kind of allocation the call makes, or null if it isn't one that
+     * allocates.  Constructor calls are not counted, the NEW before them is.
+     */
+    public static AllocationKind ofMethodInsn(final int opcode,
+                                              final String owner,
+                                              final String name,
+                                              final String desc) {
+        if (opcode == Opcodes.INVOKESTATIC) {
+            if (owner.equals("java/lang/reflect/Array") && name.equals("newInstance")) {
+                return desc.equals("(Ljava/lang/Class;I)Ljava/lang/Object;") ? REFLECTION : REFLECTIVE_NEW;
+            }
+        } else if (opcode == Opcodes.INVOKEVIRTUAL) {
+            // A class's own clone() may not allocate, the Object.clone() it calls does
+            if (name.equals("clone") && (owner.startsWith("[") || owner.equals("java/lang/Object"))) {
+                return CLONE;
+            }
+            if (name.equals("newInstance") &&
+                    ((owner.equals("java/lang/Class") && desc.equals("()Ljava/lang/Object;")) ||
+                            (owner.equals("java/lang/reflect/Constructor") &&
+                                    desc.equals("([Ljava/lang/Object;)Ljava/lang/Object;")))) {
+                return REFLECTIVE_NEW;
+            }
+        } else if (opcode == Opcodes.INVOKESPECIAL) {
+            if (name.equals("clone") && owner.equals("java/lang/Object")) {
+                return CLONE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse the instrument.coverage property.
+     *
+     * @param value a comma separated list of kinds by their property names, or "all"
+     * @return the kinds
+     * @throws IllegalArgumentException if a name isn't a kind
+     */
+    public static Set<AllocationKind> parse(final String value) {
+        final Set<AllocationKind> kinds = EnumSet.noneOf(AllocationKind.class);
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.equals("all")) {
+                kinds.addAll(EnumSet.allOf(AllocationKind.class));
+                continue;
+            }
+            boolean found = false;
+            for (AllocationKind kind : values()) {
+                if (kind.propertyName.equals(name)) {
+                    kinds.add(kind);
+                    found = true;
+                }
+            }
+            if (!found) {
+                throw new IllegalArgumentException("Unknown allocation kind " + name);
+            }
+        }
+        return kinds;
+    }
+}
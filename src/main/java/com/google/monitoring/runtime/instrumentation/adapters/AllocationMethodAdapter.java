@@ -17,14 +17,19 @@
 package com.google.monitoring.runtime.instrumentation.adapters;
 
 import com.google.monitoring.runtime.instrumentation.AllocationInstrumenter;
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,6 +56,14 @@ public class AllocationMethodAdapter extends MethodVisitor {
     public static final String RECORDER_SIGNATURE =
             "(ILjava/lang/String;Ljava/lang/Object;)V";
 
+    /**
+     * The signature of the recorder method when sites are registered with
+     * {@link AllocationSites}: as RECORDER_SIGNATURE followed by the int id
+     * of the allocation site.
+     */
+    public static final String RECORDER_SITE_SIGNATURE =
+            "(ILjava/lang/String;Ljava/lang/Object;I)V";
+
     /**
      * Like RECORDER_SIGNATURE, but for a method that extracts all of
      * the information dynamically from a class.
@@ -58,6 +71,27 @@ public class AllocationMethodAdapter extends MethodVisitor {
     public static final String CLASS_RECORDER_SIG =
             "(Ljava/lang/Class;Ljava/lang/Object;)V";
 
+    /**
+     * With inline sampling each instrumented site decrements the calling
+     * thread's countdown, the public int field of this name in
+     * {@link #SAMPLE_STATE_CLASS}, and only invokes the recorder method when
+     * it drops to zero or below.  Keeping the countdown per thread means sites
+     * never write memory shared with other threads.
+     */
+    public static final String COUNTDOWN_FIELD = "siteCountdown";
+    public static final String SAMPLE_STATE_CLASS = "com/google/monitoring/runtime/instrumentation/sample/SampleState";
+    public static final String CURRENT_STATE_METHOD = "current";
+    public static final String CURRENT_STATE_SIGNATURE = "()L" + SAMPLE_STATE_CLASS + ";";
+
+    /**
+     * With inline sampling the recorder class must also have a public static
+     * method of this name and signature, which is called once the countdown
+     * has run out to restart it, and returns whether the allocation is to be
+     * recorded.
+     */
+    public static final String RESTART_COUNTDOWN_METHOD = "restartSiteCountdown";
+    public static final String RESTART_COUNTDOWN_SIGNATURE = "()Z";
+
     // A helper struct for describing the scope of temporary local variables we
     // create as part of the instrumentation.
     private static class VariableScope {
@@ -86,8 +120,8 @@ public class AllocationMethodAdapter extends MethodVisitor {
 
     // To track the difference between <init>'s called as the result of a NEW
     // and <init>'s called because of superclass initialization, we track the
-    // number of NEWs that still need to have their <init>'s called.
-    private int outstandingAllocs = 0;
+    // ordinals of the NEWs that still need to have their <init>'s called.
+    private final Deque<Integer> outstandingAllocs = new ArrayDeque<>();
 
     // We need to set the scope of any local variables we materialize;
     // accumulate the scopes here and set them all at the end of the visit to
@@ -103,6 +137,21 @@ public class AllocationMethodAdapter extends MethodVisitor {
 
     private final String recorderClass;
     private final String recorderMethod;
+    private final boolean inlineSampling;
+    private final Set<AllocationKind> coverage;
+    private final Set<String> skipSites;
+    private final String className;
+    private final String methodName;
+    private final String methodDesc;
+    private final List<AllocationSite> sites;
+
+    // The line of the instructions being visited, or -1 before the first one
+    private int line = -1;
+
+    // The allocating instructions visited so far, of any kind, and the
+    // ordinal of the one being instrumented; see AllocationSite
+    private int allocations = 0;
+    private int ordinal = -1;
 
     /**
      * The LocalVariablesSorter used in this adapter.  Lame that it's public but
@@ -117,9 +166,62 @@ public class AllocationMethodAdapter extends MethodVisitor {
     public AllocationMethodAdapter(final MethodVisitor mv,
                                    final String recorderClass,
                                    final String recorderMethod) {
+        this(mv, InstrumentationOptions.recordingWith(recorderClass, recorderMethod), null, null, null, null);
+    }
+
+    /**
+     * @param options    how the method's allocation sites are instrumented
+     * @param className  the internal name of the class the method is in
+     * @param methodName the name of the method
+     * @param methodDesc the descriptor of the method
+     * @param sites      if not null, each site instrumented is registered
+     *                   with {@link AllocationSites} and added to this list,
+     *                   and passes its id to a recorder method with
+     *                   {@link #RECORDER_SITE_SIGNATURE}
+     */
+    public AllocationMethodAdapter(final MethodVisitor mv,
+                                   final InstrumentationOptions options,
+                                   final String className,
+                                   final String methodName,
+                                   final String methodDesc,
+                                   final List<AllocationSite> sites) {
         super(Opcodes.ASM5, mv);
-        this.recorderClass = recorderClass;
-        this.recorderMethod = recorderMethod;
+        this.recorderClass = options.getRecorderClass();
+        this.recorderMethod = options.getRecorderMethod();
+        this.inlineSampling = options.isInlineSampling();
+        this.coverage = options.getCoverage();
+        this.skipSites = options.getSkipSites();
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.sites = sites;
+    }
+
+    @Override
+    public void visitLineNumber(final int line, final Label start) {
+        this.line = line;
+        super.visitLineNumber(line, start);
+    }
+
+    private boolean covers(final AllocationKind kind) {
+        return kind != null && coverage.contains(kind);
+    }
+
+    // Counts an instruction that allocates, whether or not its kind is
+    // covered, so that each site's ordinal is the same whatever the coverage.
+    private void count(final AllocationKind kind) {
+        if (kind != null) {
+            ordinal = allocations++;
+        }
+    }
+
+    // Whether the skip list leaves the allocation of typeName being
+    // instrumented alone.  Only new and the array bytecodes are looked up,
+    // since those are the allocations escape analysis can eliminate.
+    private boolean skips(final String typeName) {
+        return !skipSites.isEmpty() &&
+                skipSites.contains(AllocationSite.key(className, methodName, methodDesc, ordinal, line,
+                        siteTypeName(typeName)));
     }
 
     /**
@@ -128,10 +230,16 @@ public class AllocationMethodAdapter extends MethodVisitor {
      */
     @Override
     public void visitIntInsn(final int opcode, final int operand) {
-        if (opcode == Opcodes.NEWARRAY&&operand==Opcodes.T_INT) {
+        count(AllocationKind.ofIntInsn(opcode, operand));
+        if (opcode == Opcodes.NEWARRAY) {
             // instack: ... count
             // outstack: ... aref
             if (operand >= 4 && operand <= 11) {
+                if (!covers(AllocationKind.ofIntInsn(opcode, operand)) ||
+                        skips(primitiveTypeNames[operand])) {
+                    super.visitIntInsn(opcode, operand);
+                    return;
+                }
                 super.visitInsn(Opcodes.DUP); // -> stack: ... count count
                 super.visitIntInsn(opcode, operand); // -> stack: ... count aref
                 invokeRecordAllocation(primitiveTypeNames[operand]);
@@ -241,10 +349,11 @@ public class AllocationMethodAdapter extends MethodVisitor {
                                 final String name,
                                 final String signature,
                                 final boolean itf) {
-        if (opcode == Opcodes.INVOKESTATIC &&
-                // Array does its own native allocation.  Grr.
-                owner.equals("java/lang/reflect/Array") &&
-                name.equals("newInstance")) {
+        final AllocationKind kind = AllocationKind.ofMethodInsn(opcode, owner, name, signature);
+        count(kind);
+        if ((kind == AllocationKind.REFLECTION || kind == AllocationKind.REFLECTIVE_NEW) && covers(kind) &&
+                opcode == Opcodes.INVOKESTATIC) {
+            // Array does its own native allocation.  Grr.
             if (signature.equals("(Ljava/lang/Class;I)Ljava/lang/Object;")) {
 
                 final Label beginScopeLabel = new Label();
@@ -276,11 +385,10 @@ public class AllocationMethodAdapter extends MethodVisitor {
                 // -> stack: ... newobj count newobj className
                 super.visitInsn(Opcodes.SWAP);
                 // -> stack: ... newobj count className newobj
-                super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-                        recorderMethod, RECORDER_SIGNATURE, false);
+                invokeRecorder(newSite(null));
                 // -> stack: ... newobj
                 return;
-            } /*else if (signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;")) {
+            } else if (signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;")) {
                 final Label beginScopeLabel = new Label();
                 final Label endScopeLabel = new Label();
                 super.visitLabel(beginScopeLabel);
@@ -317,71 +425,47 @@ public class AllocationMethodAdapter extends MethodVisitor {
                 // -> stack: ... newobj product newobj className
                 super.visitInsn(Opcodes.SWAP);
                 // -> stack: ... newobj product className newobj
-                super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-                        recorderMethod, RECORDER_SIGNATURE, false);
+                invokeRecorder(newSite(null));
                 // -> stack: ... newobj
                 return;
-            }*/
+            }
         }
 
-/*        if (opcode == Opcodes.INVOKEVIRTUAL) {
-            if ("clone".equals(name) && owner.startsWith("[")) {
+        if (opcode == Opcodes.INVOKEVIRTUAL && covers(kind)) {
+            if (kind == AllocationKind.CLONE && owner.startsWith("[")) {
+                // Cloning an array copies its outermost level only, so that's
+                // what is recorded, however many dimensions it has.
                 super.visitMethodInsn(opcode, owner, name, signature, itf);
-
-                int i = 0;
-                while (i < owner.length()) {
-                    if (owner.charAt(i) != '[') {
-                        break;
-                    }
-                    i++;
-                }
-                if (i > 1) {
-                    // -> stack: ... newobj
-                    super.visitTypeInsn(Opcodes.CHECKCAST, owner);
-                    // -> stack: ... arrayref
-                    calculateArrayLengthAndDispatch(owner.substring(i), i);
-                } else {
-                    // -> stack: ... newobj
-                    super.visitInsn(Opcodes.DUP);
-                    // -> stack: ... newobj newobj
-                    super.visitTypeInsn(Opcodes.CHECKCAST, owner);
-                    // -> stack: ... newobj arrayref
-                    super.visitInsn(Opcodes.ARRAYLENGTH);
-                    // -> stack: ... newobj length
-                    super.visitInsn(Opcodes.SWAP);
-                    // -> stack: ... length newobj
-                    invokeRecordAllocation(owner.substring(i));
-                }
+                // -> stack: ... newobj
+                super.visitInsn(Opcodes.DUP);
+                // -> stack: ... newobj newobj
+                super.visitTypeInsn(Opcodes.CHECKCAST, owner);
+                // -> stack: ... newobj arrayref
+                super.visitInsn(Opcodes.ARRAYLENGTH);
+                // -> stack: ... newobj length
+                super.visitInsn(Opcodes.SWAP);
+                // -> stack: ... length newobj
+                invokeRecordAllocation(elementTypeName(owner.substring(1)));
+                return;
+            } else {
+                // Object.clone(), Class.newInstance() or Constructor.newInstance()
+                buildRecorderFromObject(opcode, owner, name, signature, itf);
                 return;
-            } else if ("newInstance".equals(name)) {
-                if ("java/lang/Class".equals(owner) &&
-                        "()Ljava/lang/Object;".equals(signature)) {
-                    super.visitInsn(Opcodes.DUP);
-                    // -> stack: ... Class Class
-                    super.visitMethodInsn(opcode, owner, name, signature, itf);
-                    // -> stack: ... Class newobj
-                    super.visitInsn(Opcodes.DUP_X1);
-                    // -> stack: ... newobj Class newobj
-                    super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
-                            recorderMethod, CLASS_RECORDER_SIG, false);
-                    // -> stack: ... newobj
-                    return;
-                } else if ("java/lang/reflect/Constructor".equals(owner) &&
-                        "([Ljava/lang/Object;)Ljava/lang/Object;".equals(signature)) {
-                    buildRecorderFromObject(opcode, owner, name, signature, itf);
-                    return;
-                }
             }
-        }*/
+        }
 
-/*        if (opcode == Opcodes.INVOKESPECIAL) {
-            if ("clone".equals(name) && "java/lang/Object".equals(owner)) {
+        if (opcode == Opcodes.INVOKESPECIAL) {
+            if (kind == AllocationKind.CLONE && covers(kind)) {
                 buildRecorderFromObject(opcode, owner, name, signature, itf);
                 return;
-            } else if ("<init>".equals(name) && outstandingAllocs > 0) {
+            } else if ("<init>".equals(name) && !outstandingAllocs.isEmpty()) {
                 // Tricky because superclass initializers mean there can be more calls
                 // to <init> than calls to NEW; hence outstandingAllocs.
-                --outstandingAllocs;
+                ordinal = outstandingAllocs.pop();
+                if (skips(owner)) {
+                    super.visitMethodInsn(opcode, owner, name, signature, itf);
+                    return;
+                }
 
                 // Most of the time (i.e. in bytecode generated by javac) it is the case
                 // that following an <init> call the top of the stack has a reference ot
@@ -397,7 +481,7 @@ public class AllocationMethodAdapter extends MethodVisitor {
                 super.visitInsn(Opcodes.POP);
                 return;
             }
-        }*/
+        }
 
         super.visitMethodInsn(opcode, owner, name, signature, itf);
     }
@@ -412,19 +496,13 @@ public class AllocationMethodAdapter extends MethodVisitor {
                                          final boolean itf) {
         super.visitMethodInsn(opcode, owner, name, signature, itf);
         // -> stack: ... newobj
-        super.visitInsn(Opcodes.DUP);
-        // -> stack: ... newobj newobj
-        super.visitInsn(Opcodes.DUP);
-        // -> stack: ... newobj newobj newobj
-        // We could be instantiating this class or a subclass, so we
-        // have to get the class the hard way.
-        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "getClass",
-                "()Ljava/lang/Class;", false);
-        // -> stack: ... newobj newobj Class
+        super.visitInsn(Opcodes.ICONST_M1);
+        // -> stack: ... newobj -1
         super.visitInsn(Opcodes.SWAP);
-        // -> stack: ... newobj Class newobj
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass, recorderMethod,
-                CLASS_RECORDER_SIG, false);
+        // -> stack: ... -1 newobj
+        // We could be instantiating this class or a subclass, so the
+        // recorder gets the class the hard way.
+        invokeRecordAllocation(null);
         // -> stack: ... newobj
     }
 
@@ -467,17 +545,24 @@ public class AllocationMethodAdapter extends MethodVisitor {
      */
     @Override
     public void visitTypeInsn(final int opcode, final String typeName) {
+        count(AllocationKind.ofTypeInsn(opcode));
         if (opcode == Opcodes.NEW) {
             // We can't actually tag this object right after allocation because it
             // must be initialized with a ctor before we can touch it (Verifier
             // enforces this).  Instead, we just note it and tag following
             // initialization.
             super.visitTypeInsn(opcode, typeName);
-            ++outstandingAllocs;
-        } else if (opcode == Opcodes.ANEWARRAY) {
-           // super.visitInsn(Opcodes.DUP);
+            if (covers(AllocationKind.NEW)) {
+                outstandingAllocs.push(ordinal);
+            }
+        } else if (opcode == Opcodes.ANEWARRAY && covers(AllocationKind.OBJECT_ARRAY) && !skips(typeName)) {
+            // stack: ... count
+            super.visitInsn(Opcodes.DUP);
+            // -> stack: ... count count
             super.visitTypeInsn(opcode, typeName);
-            //invokeRecordAllocation(typeName);
+            // -> stack: ... count aref
+            invokeRecordAllocation(typeName);
+            // -> stack: ... aref
         } else {
             super.visitTypeInsn(opcode, typeName);
         }
@@ -527,20 +612,157 @@ public class AllocationMethodAdapter extends MethodVisitor {
     // pre: stack: ... count newobj
     // post: stack: ... newobj
     private void invokeRecordAllocation(String typeName) {
-        final Matcher matcher = namePattern.matcher(typeName);
-        if (matcher.find()) {
-            typeName = matcher.group(1);
+        typeName = siteTypeName(typeName);
+        final AllocationSite site = newSite(typeName);
+        if (inlineSampling) {
+            invokeRecordAllocationOnCountdown(typeName, site);
+            return;
         }
         // stack: ... count newobj
         super.visitInsn(Opcodes.DUP_X1);
         // -> stack: ... newobj count newobj
-        super.visitLdcInsn(typeName);
+        pushTypeName(typeName);
         // -> stack: ... newobj count newobj typename
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj count typename newobj
+        invokeRecorder(site);
+        // -> stack: ... newobj
+    }
+
+    // The element type name of a newarray with the given operand.
+    static String primitiveTypeName(final int operand) {
+        return primitiveTypeNames[operand];
+    }
+
+    // The type name recorded for an allocation: the class of the elements
+    // for an array of objects and typeName itself otherwise.
+    static String siteTypeName(final String typeName) {
+        if (typeName != null) {
+            final Matcher matcher = namePattern.matcher(typeName);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return typeName;
+    }
+
+    // Registers the site being instrumented, or returns null if sites
+    // aren't being registered.
+    private AllocationSite newSite(final String typeName) {
+        if (sites == null) {
+            return null;
+        }
+        final AllocationSite site = AllocationSites.register(className, methodName, methodDesc, ordinal, line,
+                typeName);
+        sites.add(site);
+        return site;
+    }
+
+    // Calls the recorder method, passing the site's id if there is one.
+    // pre: stack: ... count typename newobj
+    // post: stack: ...
+    private void invokeRecorder(final AllocationSite site) {
+        if (site == null) {
+            super.visitMethodInsn(Opcodes.INVOKESTATIC,
+                    recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+            return;
+        }
+        pushInt(mv, site.getId());
+        // -> stack: ... count typename newobj id
         super.visitMethodInsn(Opcodes.INVOKESTATIC,
-                recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+                recorderClass, recorderMethod, RECORDER_SITE_SIGNATURE, false);
+    }
+
+    // Like invokeRecordAllocation, but guards the call with the thread's
+    // countdown so that allocations that aren't sampled stay in the method
+    // being instrumented and only pay for a decrement and a branch.
+    // pre: stack: ... count newobj
+    // post: stack: ... newobj
+    private void invokeRecordAllocationOnCountdown(final String typeName, final AllocationSite site) {
+        final Label expired = new Label();
+        final Label skip = new Label();
+        final Label done = new Label();
+
+        // stack: ... count newobj
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, SAMPLE_STATE_CLASS,
+                CURRENT_STATE_METHOD, CURRENT_STATE_SIGNATURE, false);
+        super.visitInsn(Opcodes.DUP);
+        // -> stack: ... count newobj state state
+        super.visitFieldInsn(Opcodes.GETFIELD, SAMPLE_STATE_CLASS, COUNTDOWN_FIELD, "I");
+        super.visitInsn(Opcodes.ICONST_1);
+        super.visitInsn(Opcodes.ISUB);
+        // -> stack: ... count newobj state countdown-1
+        super.visitInsn(Opcodes.DUP_X1);
+        super.visitFieldInsn(Opcodes.PUTFIELD, SAMPLE_STATE_CLASS, COUNTDOWN_FIELD, "I");
+        // -> stack: ... count newobj countdown-1
+        super.visitJumpInsn(Opcodes.IFLE, expired);
+        // -> stack: ... count newobj
+        super.visitLabel(skip);
+        super.visitInsn(Opcodes.SWAP);
+        super.visitInsn(Opcodes.POP);
         // -> stack: ... newobj
+        super.visitJumpInsn(Opcodes.GOTO, done);
+
+        super.visitLabel(expired);
+        // stack: ... count newobj
+        super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass,
+                RESTART_COUNTDOWN_METHOD, RESTART_COUNTDOWN_SIGNATURE, false);
+        super.visitJumpInsn(Opcodes.IFEQ, skip);
+        // -> stack: ... count newobj
+        super.visitInsn(Opcodes.DUP_X1);
+        // -> stack: ... newobj count newobj
+        pushTypeName(typeName);
+        // -> stack: ... newobj count newobj typename
+        super.visitInsn(Opcodes.SWAP);
+        // -> stack: ... newobj count typename newobj
+        invokeRecorder(site);
+        // -> stack: ... newobj
+        super.visitLabel(done);
+    }
+
+    // Pushes the name of the type being allocated, or when it's null the
+    // name of the new object's class.
+    // pre: stack: ... newobj
+    // post: stack: ... newobj typename
+    private void pushTypeName(final String typeName) {
+        if (typeName != null) {
+            super.visitLdcInsn(typeName);
+            return;
+        }
+        super.visitInsn(Opcodes.DUP);
+        // -> stack: ... newobj newobj
+        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "getClass",
+                "()Ljava/lang/Class;", false);
+        // -> stack: ... newobj class
+        pushClassNameOnStack();
+        // -> stack: ... newobj class className
+        super.visitInsn(Opcodes.SWAP);
+        super.visitInsn(Opcodes.POP);
+        // -> stack: ... newobj className
+    }
+
+    // The name to record for the elements of an array, given their
+    // descriptor: int for I, as newarray records it, and the descriptor
+    // itself for a class or an array, as anewarray records it.
+    private static String elementTypeName(final String desc) {
+        final Type type = Type.getType(desc);
+        if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+            return desc;
+        }
+        return type.getClassName();
+    }
+
+    // Pushes an int constant using the shortest instruction for it.
+    static void pushInt(final MethodVisitor mv, final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
     }
 
     /**
@@ -551,6 +773,11 @@ public class AllocationMethodAdapter extends MethodVisitor {
      */
     @Override
     public void visitMultiANewArrayInsn(final String typeName, final int dimCount) {
+        count(AllocationKind.MULTI_ARRAY);
+        if (!covers(AllocationKind.MULTI_ARRAY) || skips(typeName)) {
+            super.visitMultiANewArrayInsn(typeName, dimCount);
+            return;
+        }
         // stack: ... dim1 dim2 dim3 ... dimN
         super.visitMultiANewArrayInsn(typeName, dimCount);
         // -> stack: ... aref
@@ -0,0 +1,178 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the methods of a class that contain an allocation of a kind
+ * {@link AllocationMethodAdapter} is set to instrument and that the escape
+ * skip list doesn't leave alone.  The scan reads only the instructions,
+ * skipping frames, and builds nothing; line numbers are read only when there
+ * is a skip list to look them up in.  Allocations are counted for the site
+ * ordinals the way the adapter counts them.
+ */
+public class AllocationSiteScanner extends ClassVisitor {
+    // name + desc of each method with an allocation site
+    private final Set<String> methods = new HashSet<>();
+
+    private final Set<AllocationKind> coverage;
+    private final Set<String> skipSites;
+    private String className;
+    private String methodName;
+    private String methodDesc;
+
+    private AllocationSiteScanner(final Set<AllocationKind> coverage, final Set<String> skipSites) {
+        super(Opcodes.ASM5);
+        this.coverage = coverage;
+        this.skipSites = skipSites;
+    }
+
+    /**
+     * @param cr      the class to scan
+     * @param options the kinds of allocation to look for and the sites to
+     *                leave out; escape training leaves none out
+     * @return the scanned class's allocation sites
+     */
+    public static AllocationSiteScanner scan(final ClassReader cr, final InstrumentationOptions options) {
+        final Set<String> skipSites = options.isEscapeTraining() ?
+                Collections.<String>emptySet() : options.getSkipSites();
+        final AllocationSiteScanner sites = new AllocationSiteScanner(options.getCoverage(), skipSites);
+        cr.accept(sites, skipSites.isEmpty() ? ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES :
+                ClassReader.SKIP_FRAMES);
+        return sites;
+    }
+
+    @Override
+    public void visit(final int version,
+                      final int access,
+                      final String name,
+                      final String signature,
+                      final String superName,
+                      final String[] interfaces) {
+        className = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access,
+                                     final String name,
+                                     final String desc,
+                                     final String signature,
+                                     final String[] exceptions) {
+        methodName = name;
+        methodDesc = desc;
+        return new MethodScanner();
+    }
+
+    /**
+     * @return true if the method has an allocation site to instrument
+     */
+    public boolean hasSites(final String name, final String desc) {
+        return methods.contains(name + desc);
+    }
+
+    /**
+     * @return true if any method of the class has an allocation site to instrument
+     */
+    public boolean hasSites() {
+        return !methods.isEmpty();
+    }
+
+    // Scans one method, tracking lines and ordinals as AllocationMethodAdapter does
+    private final class MethodScanner extends MethodVisitor {
+        private int line = -1;
+        private int allocations = 0;
+        private int ordinal = -1;
+        // The ordinals of the covered NEWs whose <init>'s haven't been called
+        private final Deque<Integer> outstandingAllocs = new ArrayDeque<>();
+
+        MethodScanner() {
+            super(Opcodes.ASM5);
+        }
+
+        @Override
+        public void visitLineNumber(final int line, final Label start) {
+            this.line = line;
+        }
+
+        private void count(final AllocationKind kind) {
+            if (kind != null) {
+                ordinal = allocations++;
+            }
+        }
+
+        private boolean covers(final AllocationKind kind) {
+            return kind != null && coverage.contains(kind);
+        }
+
+        private boolean skips(final String typeName) {
+            return !skipSites.isEmpty() &&
+                    skipSites.contains(AllocationSite.key(className, methodName, methodDesc, ordinal, line,
+                            AllocationMethodAdapter.siteTypeName(typeName)));
+        }
+
+        // The site being visited will be instrumented
+        private void found() {
+            methods.add(methodName + methodDesc);
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            final AllocationKind kind = AllocationKind.ofIntInsn(opcode, operand);
+            count(kind);
+            if (covers(kind) && !skips(AllocationMethodAdapter.primitiveTypeName(operand))) {
+                found();
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(final int opcode, final String type) {
+            final AllocationKind kind = AllocationKind.ofTypeInsn(opcode);
+            count(kind);
+            if (!covers(kind)) {
+                return;
+            }
+            if (kind == AllocationKind.NEW) {
+                // Looked up at the <init>, as the adapter does
+                outstandingAllocs.push(ordinal);
+            } else if (!skips(type)) {
+                found();
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String desc, final int dims) {
+            count(AllocationKind.MULTI_ARRAY);
+            if (covers(AllocationKind.MULTI_ARRAY) && !skips(desc)) {
+                found();
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode,
+                                    final String owner,
+                                    final String name,
+                                    final String desc,
+                                    final boolean itf) {
+            final AllocationKind kind = AllocationKind.ofMethodInsn(opcode, owner, name, desc);
+            count(kind);
+            if (covers(kind)) {
+                found();
+            } else if (opcode == Opcodes.INVOKESPECIAL && "<init>".equals(name) && !outstandingAllocs.isEmpty()) {
+                ordinal = outstandingAllocs.pop();
+                if (!skips(owner)) {
+                    found();
+                }
+            }
+        }
+    }
+}
@@ -1,68 +1,317 @@
 package com.google.monitoring.runtime.instrumentation.adapters;
 
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
 import com.sun.management.ThreadMXBean;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * Created by jmaloney on 6/27/2016.
+ * Escape training: finds the allocation sites whose allocations the JIT eliminates. Instrumenting a site
+ * for the recorders hands the new object to the recorder, which makes it escape, so a site the JIT would
+ * have scalar replaced allocates for real and costs the probe on top. Sites on the skip list this class
+ * writes are left uninstrumented by AllocationMethodAdapter in production runs (escape.skip.file).
+ *
+ * While training, EscapeMethodAdapter calls start() before each allocation and stop(site) once it's
+ * complete; neither sees the new object, so escape analysis works as it would without the agent. stop()
+ * compares the thread's allocated bytes, from ThreadMXBean.getThreadAllocatedBytes, with those at the
+ * matching start(). Reading them can allocate too (two long[1] arrays per reading on Java 8), so train()
+ * measures what a reading costs on this JVM and stop() takes that off for every reading made since the
+ * start(), including those of sites nested inside the one measured, like a constructor's arguments.
+ *
+ * Interpreted and C1 compiled code always allocates, so a site only makes the skip list once the last
+ * escape.training.min.elided measurements in a row allocated nothing; a site that allocates in some of
+ * the places it's inlined into keeps breaking its run and stays instrumented.
  */
-public class EscapeAnalyzer {
-    private static ConcurrentHashMap<String,Boolean> skipMap = new ConcurrentHashMap<>();
+public final class EscapeAnalyzer {
+    // Per site counters, in chunks of CHUNK_SIZE sites
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MEASURED = 0;
+    private static final int ELIDED = 1;
+    // Measurements in a row that allocated nothing, up to the latest
+    private static final int RUN = 2;
+    private static final int COUNTERS = 3;
 
-    private static class ByteAllocationTracker {
+    // Enough readings for the reading itself to be compiled
+    private static final int CALIBRATION_READINGS = 100_000;
+
+    private static final Object lock = new Object();
+    private static volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    // Set up by train() before training is set
+    private static ThreadMXBean bean;
+    private static long bytesPerReading;
+    private static long minElided;
+    private static volatile boolean training = false;
+
+    private static final ThreadLocal<Tracker> tracker = new ThreadLocal<Tracker>() {
+        @Override
+        protected Tracker initialValue() {
+            return new Tracker();
+        }
+    };
+
+    // A thread's open measurements
+    private static final class Tracker {
         private static final int MAX_DEPTH = 128;
-        private final ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
-        private final long[] thisThread = new long[1];
-        private long[][] start = new long[MAX_DEPTH][2];
+        // 0 until the thread has an id; a thread attaching to the JVM allocates before it gets one
+        private long threadId = 0;
+        private final long[] startBytes = new long[MAX_DEPTH];
+        private final long[] startReadings = new long[MAX_DEPTH];
         private int depth = 0;
-        private long invocationCount = 0;
+        private long readings = 0;
+        // Set while measuring, so that the sites in the JDK code measuring and keeping count aren't measured
+        private boolean busy = false;
 
-        public ByteAllocationTracker(){
-            thisThread[0] = Thread.currentThread().getId();
+        void start() {
+            if (busy || !hasId()) {
+                return;
+            }
+            busy = true;
+            try {
+                if (depth == MAX_DEPTH) {
+                    // Allocations that threw never got to their stop(); drop what they left open
+                    depth = 0;
+                }
+                startBytes[depth] = read();
+                startReadings[depth] = readings;
+                depth++;
+            } finally {
+                busy = false;
+            }
         }
 
-        public void start(){
-            if (depth < MAX_DEPTH) {
-                start[depth][0] = bean.getThreadAllocatedBytes(thisThread)[0];
-                start[depth][1] = invocationCount;
-            } else {
-                System.err.println("Warning exceed maximum depth");
+        void stop(final int site) {
+            if (busy || !hasId()) {
+                return;
             }
-            invocationCount++;
-            depth++;
-        }
-
-        public void stop(String methodName){
-            depth--;
-            if (skipMap.get(methodName) == null) {
-                long stop = bean.getThreadAllocatedBytes(thisThread)[0];
-                if (depth < MAX_DEPTH) {
-                    if (stop - start[depth][0] == 24 * (invocationCount - start[depth][1])){
-                        skipMap.put(methodName, true);
-                        System.out.println(methodName);
-                    }
-                } else {
-                    System.err.println("Warning exceed maximum depth: " + methodName);
+            busy = true;
+            try {
+                final long bytes = read();
+                if (depth > 0) {
+                    depth--;
+                    final long allocated = bytes - startBytes[depth] - bytesPerReading * (readings - startReadings[depth]);
+                    record(site, allocated == 0);
                 }
-                invocationCount++;
+            } finally {
+                busy = false;
+            }
+        }
+
+        private boolean hasId() {
+            if (threadId == 0) {
+                threadId = Thread.currentThread().getId();
             }
+            return threadId != 0;
+        }
+
+        long read() {
+            readings++;
+            return bean.getThreadAllocatedBytes(threadId);
         }
     }
 
-    private static ThreadLocal<ByteAllocationTracker> threadLocalByteAllocationTracker = new ThreadLocal(){
-        @Override
-        protected ByteAllocationTracker initialValue(){
-            return new ByteAllocationTracker();
+    private EscapeAnalyzer() {
+    }
+
+    /**
+     * Start training: sites instrumented by EscapeMethodAdapter from now on are measured. Call this before
+     * any class is instrumented for training, since reading the allocated bytes runs JDK code that may be.
+     *
+     * @param minElided how many measurements in a row must allocate nothing for a site to be skipped
+     * @throws IllegalArgumentException if the JVM can't measure the bytes a thread allocates
+     */
+    public static void train(final long minElided) {
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            throw new IllegalArgumentException("This JVM can't measure the bytes a thread allocates for escape training");
         }
-    };
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        bean = threadBean;
+        EscapeAnalyzer.minElided = minElided;
+        final Tracker thisThread = tracker.get();
+        thisThread.hasId();
+        bytesPerReading = calibrate(thisThread);
+        training = true;
+    }
+
+    /**
+     * Stop measuring. Instrumented sites keep calling start() and stop(), which return straight away.
+     */
+    public static void stopTraining() {
+        training = false;
+    }
+
+    public static boolean isTraining() {
+        return training;
+    }
+
+    // The least a reading allocates. Should readings get cheaper later, measurements come out below zero,
+    // which doesn't count as allocating nothing.
+    private static long calibrate(final Tracker thisThread) {
+        long least = Long.MAX_VALUE;
+        long last = thisThread.read();
+        for (int i = 0; i < CALIBRATION_READINGS; i++) {
+            final long next = thisThread.read();
+            least = Math.min(least, next - last);
+            last = next;
+        }
+        return least;
+    }
+
+    /**
+     * Called before an allocation, by the code EscapeMethodAdapter instruments.
+     */
+    public static void start() {
+        if (training) {
+            tracker.get().start();
+        }
+    }
 
-    public static void start(){
-        threadLocalByteAllocationTracker.get().start();
+    /**
+     * Called once an allocation is complete, by the code EscapeMethodAdapter instruments.
+     *
+     * @param site the id of the allocation site
+     */
+    public static void stop(final int site) {
+        if (training) {
+            tracker.get().stop(site);
+        }
+    }
+
+    private static void record(final int site, final boolean elided) {
+        final AtomicLongArray chunk = chunk(site);
+        final int base = (site & (CHUNK_SIZE - 1)) * COUNTERS;
+        chunk.incrementAndGet(base + MEASURED);
+        if (elided) {
+            chunk.incrementAndGet(base + ELIDED);
+            chunk.incrementAndGet(base + RUN);
+        } else {
+            chunk.set(base + RUN, 0);
+        }
+    }
+
+    private static AtomicLongArray chunk(final int site) {
+        final int index = site >>> CHUNK_BITS;
+        AtomicLongArray[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (lock) {
+            current = chunks;
+            if (index >= current.length) {
+                final AtomicLongArray[] grown = new AtomicLongArray[Math.max(index + 1, current.length * 2)];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[index] == null) {
+                current[index] = new AtomicLongArray(CHUNK_SIZE * COUNTERS);
+            }
+            chunks = current;
+            return current[index];
+        }
+    }
+
+    private static long counter(final int site, final int offset) {
+        final AtomicLongArray[] current = chunks;
+        final int index = site >>> CHUNK_BITS;
+        if (site < 0 || index >= current.length || current[index] == null) {
+            return 0;
+        }
+        return current[index].get((site & (CHUNK_SIZE - 1)) * COUNTERS + offset);
+    }
+
+    /**
+     * @return how many times the site was measured
+     */
+    public static long measured(final int site) {
+        return counter(site, MEASURED);
     }
 
-    public static void stop(String methodName){
-        threadLocalByteAllocationTracker.get().stop(methodName);
+    /**
+     * @return how many of the site's measurements allocated nothing
+     */
+    public static long elided(final int site) {
+        return counter(site, ELIDED);
+    }
+
+    /**
+     * @return the keys of the sites whose latest measurements, at least the minElided given to train(), all
+     * allocated nothing
+     */
+    public static Set<String> nonEscapingSites() {
+        final Set<String> keys = new TreeSet<>();
+        final AtomicLongArray[] current = chunks;
+        for (int index = 0; index < current.length; index++) {
+            if (current[index] == null) {
+                continue;
+            }
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                if (current[index].get(i * COUNTERS + RUN) >= minElided) {
+                    final AllocationSite site = AllocationSites.get((index << CHUNK_BITS) + i);
+                    if (site != null) {
+                        keys.add(site.getKey());
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Stop training and write the skip list.
+     *
+     * @param path where to write it, for escape.skip.file
+     * @return the number of sites written
+     */
+    public static int finishTraining(final String path) throws IOException {
+        stopTraining();
+        final Set<String> keys = nonEscapingSites();
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "utf-8"));
+        try {
+            out.write("# Allocation sites escape training found the JIT eliminates, as class.method(desc)#ordinal:line type\n");
+            for (String key : keys) {
+                out.write(key + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        return keys.size();
+    }
+
+    /**
+     * Read a skip list written by finishTraining().
+     *
+     * @param path the escape.skip.file property
+     * @return the keys of the sites to leave uninstrumented
+     */
+    public static Set<String> readSkipList(final String path) throws IOException {
+        final Set<String> keys = new HashSet<>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), "utf-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    keys.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return keys;
     }
 }
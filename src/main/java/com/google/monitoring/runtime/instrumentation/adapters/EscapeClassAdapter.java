@@ -0,0 +1,54 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.JSRInlinerAdapter;
+
+import java.util.Set;
+
+/**
+ * A <code>ClassVisitor</code> that processes methods with an
+ * <code>EscapeMethodAdapter</code>, to measure whether the JIT eliminates each
+ * allocation site while training; see {@link EscapeAnalyzer}.
+ */
+public class EscapeClassAdapter extends ClassVisitor {
+    private final Set<AllocationKind> coverage;
+    private String className;
+
+    /**
+     * @param options the kinds of allocation to measure are those it covers;
+     *                its recorder method isn't called
+     */
+    public EscapeClassAdapter(final ClassVisitor cv, final InstrumentationOptions options) {
+        super(Opcodes.ASM5, cv);
+        this.coverage = options.getCoverage();
+    }
+
+    @Override
+    public void visit(final int version,
+                      final int access,
+                      final String name,
+                      final String signature,
+                      final String superName,
+                      final String[] interfaces) {
+        className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access,
+                                     final String base,
+                                     final String desc,
+                                     final String signature,
+                                     final String[] exceptions) {
+        MethodVisitor mv = cv.visitMethod(access, base, desc, signature, exceptions);
+        if (mv != null) {
+            // Stackmaps are computed as for AllocationClassAdapter, so JSRs
+            // and RETs are removed here too.
+            final JSRInlinerAdapter jsria = new JSRInlinerAdapter(mv, access, base, desc, signature, exceptions);
+            mv = new EscapeMethodAdapter(jsria, coverage, className, base, desc);
+        }
+        return mv;
+    }
+}
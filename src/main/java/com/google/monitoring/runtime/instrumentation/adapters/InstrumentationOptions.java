@@ -0,0 +1,116 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * How classes are instrumented: which recorder method allocation sites call
+ * and what they do before calling it.  Options are immutable; each with
+ * method returns a copy with one option changed, so one instance can be
+ * shared by every class the agent rewrites.
+ */
+public final class InstrumentationOptions {
+    private final String recorderClass;
+    private final String recorderMethod;
+    private final boolean inlineSampling;
+    private final Set<AllocationKind> coverage;
+    private final Set<String> skipSites;
+    private final boolean escapeTraining;
+
+    private InstrumentationOptions(final String recorderClass,
+                                   final String recorderMethod,
+                                   final boolean inlineSampling,
+                                   final Set<AllocationKind> coverage,
+                                   final Set<String> skipSites,
+                                   final boolean escapeTraining) {
+        this.recorderClass = recorderClass;
+        this.recorderMethod = recorderMethod;
+        this.inlineSampling = inlineSampling;
+        this.coverage = coverage;
+        this.skipSites = skipSites;
+        this.escapeTraining = escapeTraining;
+    }
+
+    /**
+     * @param recorderClass  the internal name of the class containing the
+     *                       recorder method
+     * @param recorderMethod the name of the recorder method, which must have
+     *                       {@link AllocationMethodAdapter#RECORDER_SIGNATURE}
+     * @return options for calling the recorder method from the default kinds
+     * of allocation, without inline sampling
+     */
+    public static InstrumentationOptions recordingWith(final String recorderClass, final String recorderMethod) {
+        return new InstrumentationOptions(recorderClass, recorderMethod, false, AllocationKind.DEFAULT_COVERAGE,
+                Collections.<String>emptySet(), false);
+    }
+
+    /**
+     * @param inlineSampling whether each allocation site should check the
+     *                       thread's countdown before calling the recorder
+     *                       method.  The recorder class must then also provide
+     *                       the method described by
+     *                       {@link AllocationMethodAdapter#RESTART_COUNTDOWN_METHOD}.
+     */
+    public InstrumentationOptions withInlineSampling(final boolean inlineSampling) {
+        return new InstrumentationOptions(recorderClass, recorderMethod, inlineSampling, coverage, skipSites,
+                escapeTraining);
+    }
+
+    /**
+     * @param coverage the kinds of allocation to instrument, the others are
+     *                 left alone
+     */
+    public InstrumentationOptions withCoverage(final Set<AllocationKind> coverage) {
+        final Set<AllocationKind> copy = EnumSet.noneOf(AllocationKind.class);
+        copy.addAll(coverage);
+        return new InstrumentationOptions(recorderClass, recorderMethod, inlineSampling,
+                Collections.unmodifiableSet(copy), skipSites, escapeTraining);
+    }
+
+    /**
+     * @param skipSites the keys of the sites to leave uninstrumented (see
+     *                  {@link com.google.monitoring.runtime.instrumentation.AllocationSite#getKey()}),
+     *                  normally the sites escape training found the JIT
+     *                  scalar replaces
+     */
+    public InstrumentationOptions withSkipSites(final Set<String> skipSites) {
+        return new InstrumentationOptions(recorderClass, recorderMethod, inlineSampling, coverage,
+                Collections.unmodifiableSet(new HashSet<>(skipSites)), escapeTraining);
+    }
+
+    /**
+     * @param escapeTraining whether the allocation sites covered call
+     *                       {@link EscapeAnalyzer} before and after they
+     *                       allocate instead of calling the recorder method
+     */
+    public InstrumentationOptions withEscapeTraining(final boolean escapeTraining) {
+        return new InstrumentationOptions(recorderClass, recorderMethod, inlineSampling, coverage, skipSites,
+                escapeTraining);
+    }
+
+    public String getRecorderClass() {
+        return recorderClass;
+    }
+
+    public String getRecorderMethod() {
+        return recorderMethod;
+    }
+
+    public boolean isInlineSampling() {
+        return inlineSampling;
+    }
+
+    public Set<AllocationKind> getCoverage() {
+        return coverage;
+    }
+
+    public Set<String> getSkipSites() {
+        return skipSites;
+    }
+
+    public boolean isEscapeTraining() {
+        return escapeTraining;
+    }
+}
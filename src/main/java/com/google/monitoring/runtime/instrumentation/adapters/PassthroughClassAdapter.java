@@ -0,0 +1,44 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Sends the methods that have allocation sites through the instrumenting
+ * adapters and hands every other method straight to the
+ * {@link ClassWriter}.  When the writer was built from the
+ * {@link org.objectweb.asm.ClassReader} being accepted, ASM then copies those
+ * methods' bytes, frames included, instead of decoding them and computing
+ * their frames again.
+ */
+public class PassthroughClassAdapter extends ClassVisitor {
+    private final ClassWriter cw;
+    private final AllocationSiteScanner sites;
+
+    /**
+     * @param cv    the adapters that instrument the class, ending in cw
+     * @param cw    the writer of the instrumented class
+     * @param sites the methods to send through cv
+     */
+    public PassthroughClassAdapter(final ClassVisitor cv,
+                                   final ClassWriter cw,
+                                   final AllocationSiteScanner sites) {
+        super(Opcodes.ASM5, cv);
+        this.cw = cw;
+        this.sites = sites;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access,
+                                     final String name,
+                                     final String desc,
+                                     final String signature,
+                                     final String[] exceptions) {
+        if (sites.hasSites(name, desc)) {
+            return super.visitMethod(access, name, desc, signature, exceptions);
+        }
+        return cw.visitMethod(access, name, desc, signature, exceptions);
+    }
+}
@@ -0,0 +1,199 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Map;
+
+/**
+ * Changes the site ids an instrumented class passes to the recorder, for a
+ * class read from the instrumented class cache whose ids were given out to
+ * other sites in this JVM.  Every id is the int pushed right before a call to
+ * the recorder method with {@link AllocationMethodAdapter#RECORDER_SITE_SIGNATURE};
+ * only those pushes are rewritten, so the frames are left as they are.
+ */
+public class SiteIdAdapter extends ClassVisitor {
+    private final InstrumentationOptions options;
+    private final Map<Integer, Integer> ids;
+
+    /**
+     * @param options how the class was instrumented
+     * @param ids     the new id of each site id to change
+     */
+    public SiteIdAdapter(final ClassVisitor cv,
+                         final InstrumentationOptions options,
+                         final Map<Integer, Integer> ids) {
+        super(Opcodes.ASM5, cv);
+        this.options = options;
+        this.ids = ids;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access,
+                                     final String name,
+                                     final String desc,
+                                     final String signature,
+                                     final String[] exceptions) {
+        final MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
+        return mv == null ? null : new SiteIdMethodAdapter(mv);
+    }
+
+    // Holds back each int constant until the next instruction shows whether
+    // it's a site id.
+    private final class SiteIdMethodAdapter extends MethodVisitor {
+        private boolean pending = false;
+        private int value;
+
+        SiteIdMethodAdapter(final MethodVisitor mv) {
+            super(Opcodes.ASM5, mv);
+        }
+
+        // Pushes the constant held back, unchanged.
+        private void flush() {
+            if (pending) {
+                pending = false;
+                AllocationMethodAdapter.pushInt(mv, value);
+            }
+        }
+
+        private void hold(final int constant) {
+            flush();
+            pending = true;
+            value = constant;
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode,
+                                    final String owner,
+                                    final String name,
+                                    final String desc,
+                                    final boolean itf) {
+            if (pending && opcode == Opcodes.INVOKESTATIC &&
+                    owner.equals(options.getRecorderClass()) &&
+                    name.equals(options.getRecorderMethod()) &&
+                    desc.equals(AllocationMethodAdapter.RECORDER_SITE_SIGNATURE)) {
+                final Integer id = ids.get(value);
+                if (id != null) {
+                    value = id;
+                }
+            }
+            flush();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInsn(final int opcode) {
+            if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+                hold(opcode - Opcodes.ICONST_0);
+                return;
+            }
+            flush();
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(final int opcode, final int operand) {
+            if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+                hold(operand);
+                return;
+            }
+            flush();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitLdcInsn(final Object cst) {
+            if (cst instanceof Integer) {
+                hold((Integer) cst);
+                return;
+            }
+            flush();
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitFrame(final int type,
+                               final int nLocal,
+                               final Object[] local,
+                               final int nStack,
+                               final Object[] stack) {
+            flush();
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+
+        @Override
+        public void visitVarInsn(final int opcode, final int var) {
+            flush();
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(final int opcode, final String type) {
+            flush();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(final int opcode,
+                                   final String owner,
+                                   final String name,
+                                   final String desc) {
+            flush();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(final String name,
+                                           final String desc,
+                                           final Handle bsm,
+                                           final Object... bsmArgs) {
+            flush();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(final int opcode, final Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(final Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitIincInsn(final int var, final int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(final int min, final int max, final Label dflt, final Label... labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(final Label dflt, final int[] keys, final Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(final String desc, final int dims) {
+            flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        @Override
+        public void visitMaxs(final int maxStack, final int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+    }
+}
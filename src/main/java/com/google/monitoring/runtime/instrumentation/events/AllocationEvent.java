@@ -8,14 +8,14 @@ package com.google.monitoring.runtime.instrumentation.events;
  */
 public class AllocationEvent implements Event {
     private final long size;
-    private final StackTraceElement[] trace;
+    private final int stackId;
     private final String objName;
 
     public AllocationEvent(final long size,
-                           final StackTraceElement[] trace,
+                           final int stackId,
                            final String objName){
         this.size = size;
-        this.trace = trace;
+        this.stackId = stackId;
         this.objName = objName;
     }
 
@@ -25,8 +25,8 @@ public class AllocationEvent implements Event {
     }
 
     @Override
-    public StackTraceElement[] getTrace() {
-        return trace;
+    public int getStackId() {
+        return stackId;
     }
 
     @Override
@@ -0,0 +1,78 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Layout of the binary output format. A file starts with MAGIC and VERSION followed by records. Each
+ * record is a type byte, the length of its payload as a varint and the payload, so readers can skip record
+ * types they don't know. A zero type byte on its own is padding and is skipped.
+ *
+ * All numbers in payloads are unsigned LEB128 varints:
+ *
+ *   STRING - id, then the string's utf-8 bytes for the rest of the payload
+ *   STACK  - id, frame count, then the STRING id of each frame, outermost first
+ *   EVENT  - STACK id, STRING id of the object type, size in bytes
+ *   META   - STRING id of the name, value; the "#name value" lines of the text format
+ *
+ * Strings and stacks are defined once per file, before the first record that uses them.
+ */
+public final class BinaryEventFormat {
+    public static final byte[] MAGIC = {'F', 'L', 'M', 'B'};
+    public static final int VERSION = 1;
+
+    public static final int PADDING = 0;
+    public static final int STRING = 1;
+    public static final int STACK = 2;
+    public static final int EVENT = 3;
+    public static final int META = 4;
+
+    private BinaryEventFormat(){
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @param in the stream to read from
+     * @return the value
+     * @throws IOException if the stream fails or ends in the middle of the varint
+     */
+    public static long readVarint(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            final int b = in.read();
+            if (b < 0){
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read an unsigned varint from a payload.
+     *
+     * @param payload the record payload
+     * @param position position[0] is where to start reading and is moved past the varint
+     * @return the value
+     * @throws IOException if the payload ends in the middle of the varint
+     */
+    public static long readVarint(final byte[] payload, final int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            if (position[0] >= payload.length){
+                throw new EOFException("Truncated varint");
+            }
+            final int b = payload[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,160 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes events in the binary output format, see BinaryEventFormat. Frames are rendered through the
+ * text formatter's cache and every distinct string is written once per output file, so an event that
+ * reuses a stack costs a few bytes.
+ */
+public class BinaryEventFormatter {
+    private final StackTable stackTable;
+    private final EventFormatter formatter;
+
+    // What has been defined in the current output file
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private int[] frameStringIds = new int[0];
+    private final BitSet definedStacks = new BitSet();
+
+    // The record being built, so its length can be written ahead of it
+    private byte[] record = new byte[256];
+    private int recordLength;
+
+    public BinaryEventFormatter(final StackTable stackTable, final EventFormatter formatter){
+        this.stackTable = stackTable;
+        this.formatter = formatter;
+    }
+
+    /**
+     * Start a new output file.
+     *
+     * @param out the new file
+     * @throws IOException if the stream fails
+     */
+    public void writeHeader(final OutputStream out) throws IOException {
+        stringIds.clear();
+        Arrays.fill(frameStringIds, -1);
+        definedStacks.clear();
+
+        out.write(BinaryEventFormat.MAGIC);
+        out.write(BinaryEventFormat.VERSION);
+    }
+
+    /**
+     * Write an event, along with any definitions it needs.
+     *
+     * @param event the event to write
+     * @param out the printer's output
+     * @throws IOException if the stream fails
+     */
+    public void write(final Event event, final OutputStream out) throws IOException {
+        final int stackId = event.getStackId();
+        defineStack(stackId, out);
+        final int objectId = defineString(event.getObjectName(), out);
+
+        recordLength = 0;
+        putVarint(stackId);
+        putVarint(objectId);
+        putVarint(event.getSize());
+        writeRecord(BinaryEventFormat.EVENT, out);
+    }
+
+    /**
+     * Write a named value, like the number of dropped events.
+     *
+     * @param name the value's name
+     * @param value the value
+     * @param out the printer's output
+     * @throws IOException if the stream fails
+     */
+    public void writeMeta(final String name, final long value, final OutputStream out) throws IOException {
+        final int nameId = defineString(name, out);
+
+        recordLength = 0;
+        putVarint(nameId);
+        putVarint(value);
+        writeRecord(BinaryEventFormat.META, out);
+    }
+
+    private void defineStack(final int stackId, final OutputStream out) throws IOException {
+        if (definedStacks.get(stackId)){
+            return;
+        }
+        final int[] frameIds = stackTable.frameIds(stackId);
+        final int[] stringIds = new int[frameIds.length];
+        for (int i = 0; i < frameIds.length; i++){
+            stringIds[i] = defineFrame(frameIds[i], out);
+        }
+
+        recordLength = 0;
+        putVarint(stackId);
+        putVarint(stringIds.length);
+        for (int stringId : stringIds){
+            putVarint(stringId);
+        }
+        writeRecord(BinaryEventFormat.STACK, out);
+        definedStacks.set(stackId);
+    }
+
+    private int defineFrame(final int frameId, final OutputStream out) throws IOException {
+        if (frameId >= frameStringIds.length){
+            final int oldLength = frameStringIds.length;
+            frameStringIds = Arrays.copyOf(frameStringIds, Math.max(frameId + 1, oldLength * 2));
+            Arrays.fill(frameStringIds, oldLength, frameStringIds.length, -1);
+        }
+        if (frameStringIds[frameId] < 0){
+            frameStringIds[frameId] = defineString(formatter.frameText(frameId), out);
+        }
+        return frameStringIds[frameId];
+    }
+
+    private int defineString(final String string, final OutputStream out) throws IOException {
+        final Integer existing = stringIds.get(string);
+        if (existing != null){
+            return existing;
+        }
+        final int id = stringIds.size();
+        stringIds.put(string, id);
+
+        final byte[] bytes = String.valueOf(string).getBytes(StandardCharsets.UTF_8);
+        recordLength = 0;
+        putVarint(id);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+        recordLength += bytes.length;
+        writeRecord(BinaryEventFormat.STRING, out);
+        return id;
+    }
+
+    private void writeRecord(final int type, final OutputStream out) throws IOException {
+        out.write(type);
+        int length = recordLength;
+        while ((length & ~0x7F) != 0){
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(record, 0, recordLength);
+    }
+
+    private void putVarint(long value){
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0){
+            record[recordLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        record[recordLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(final int extra){
+        if (recordLength + extra > record.length){
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + extra));
+        }
+    }
+}
@@ -20,9 +20,9 @@ public interface Event {
     String getObjectName();
 
     /**
-     * Get the stacktrace associated with the sample
+     * Get the stack associated with the sample
      *
-     * @return an array of StackTraceElements one for each stack frame
+     * @return the stack's id in the StackTable
      */
-    StackTraceElement[] getTrace();
+    int getStackId();
 }
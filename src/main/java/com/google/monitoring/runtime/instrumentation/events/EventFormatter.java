@@ -0,0 +1,149 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes events to a printer's output. Frames and stacks are rendered once per id and cached, so writing
+ * an event doesn't rebuild its stack.
+ *
+ * With OutputFormat.TEXT every event is written as a whole stack line, see EventParser. With
+ * OutputFormat.INTERNED each frame and stack is defined the first time it's used in an output file and
+ * events refer to their stack by id:
+ *
+ *   #f 0 com.example.Main.main
+ *   #f 1 com.example.Main.work
+ *   #s 2 0;1
+ *   @2 java/lang/String 24
+ *
+ * FlameCollapse understands both. OutputFormat.BINARY is written by BinaryEventFormatter instead, which
+ * renders its frames through this class. OutputFormat.COLLAPSED is written like TEXT; the printer sums the
+ * events with a StackAggregator and writes the totals.
+ */
+public class EventFormatter {
+    private final StackTable stackTable;
+    private final EventParser.VerbosityLevel verbosityLevel;
+    private final EventParser.OutputFormat outputFormat;
+
+    // Rendered frames and stacks by id, filled in as they're first needed
+    private final List<String> frameText = new ArrayList<>();
+    private final List<String> stackText = new ArrayList<>();
+
+    // Ids already defined in the current output file
+    private final BitSet definedFrames = new BitSet();
+    private final BitSet definedStacks = new BitSet();
+
+    public EventFormatter(final StackTable stackTable,
+                          final EventParser.VerbosityLevel verbosityLevel,
+                          final EventParser.OutputFormat outputFormat){
+        this.stackTable = stackTable;
+        this.verbosityLevel = verbosityLevel;
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Write an event, along with any definitions it needs.
+     *
+     * @param event the event to write
+     * @param writer the printer's output
+     * @throws IOException if the writer fails
+     */
+    public void write(final Event event, final Writer writer) throws IOException {
+        final int stackId = event.getStackId();
+        switch (outputFormat){
+            case TEXT:
+            case COLLAPSED:
+                writer.write(stackText(stackId));
+                break;
+            case INTERNED:
+                define(stackId, writer);
+                writer.write('@');
+                writer.write(Integer.toString(stackId));
+                writer.write(' ');
+                break;
+        }
+        writer.write(event.getObjectName());
+        writer.write(' ');
+        writer.write(Long.toString(event.getSize()));
+        writer.write('\n');
+    }
+
+    /**
+     * Forget what has been defined, for when the printer starts a new output file.
+     */
+    public void reset(){
+        definedFrames.clear();
+        definedStacks.clear();
+    }
+
+    private void define(final int stackId, final Writer writer) throws IOException {
+        if (definedStacks.get(stackId)){
+            return;
+        }
+        final int[] frameIds = stackTable.frameIds(stackId);
+        for (int frameId : frameIds){
+            if (!definedFrames.get(frameId)){
+                writer.write("#f ");
+                writer.write(Integer.toString(frameId));
+                writer.write(' ');
+                writer.write(frameText(frameId));
+                writer.write('\n');
+                definedFrames.set(frameId);
+            }
+        }
+        writer.write("#s ");
+        writer.write(Integer.toString(stackId));
+        writer.write(' ');
+        for (int i = 0; i < frameIds.length; i++){
+            if (i != 0){
+                writer.write(';');
+            }
+            writer.write(Integer.toString(frameIds[i]));
+        }
+        writer.write('\n');
+        definedStacks.set(stackId);
+    }
+
+    // The stack as "frame;frame;...;", outermost first
+    private String stackText(final int stackId){
+        String text = get(stackText, stackId);
+        if (text == null){
+            final StringBuilder builder = new StringBuilder();
+            for (int frameId : stackTable.frameIds(stackId)){
+                builder.append(frameText(frameId)).append(';');
+            }
+            text = builder.toString();
+            set(stackText, stackId, text);
+        }
+        return text;
+    }
+
+    /**
+     * Get a frame rendered at the formatter's verbosity level.
+     *
+     * @param frameId a frame id from the StackTable
+     * @return the frame's text
+     */
+    public String frameText(final int frameId){
+        String text = get(frameText, frameId);
+        if (text == null){
+            text = EventParser.parseFrame(stackTable.frame(frameId), verbosityLevel);
+            set(frameText, frameId, text);
+        }
+        return text;
+    }
+
+    private static String get(final List<String> cache, final int id){
+        return id < cache.size() ? cache.get(id) : null;
+    }
+
+    private static void set(final List<String> cache, final int id, final String text){
+        while (cache.size() <= id){
+            cache.add(null);
+        }
+        cache.set(id, text);
+    }
+}
@@ -11,50 +11,35 @@ public class EventParser {
         METHOD_CLASS_LINE_NUMBER;
     }
 
+    public enum OutputFormat{
+        TEXT,
+        INTERNED,
+        COLLAPSED,
+        BINARY;
+    }
+
     /**
-     * Events should be parsed to the following format depending on verbosityLevel:
+     * Events are written in the following format depending on verbosityLevel:
      *   METHOD_NAME - methodName1;methodName2;methodName3 1253
      *   METHOD_CLASS_NAME - classPathAndName1.methodName1;classPathAndName2.methodName2 1253
      *   METHOD_CLASS_LINE_NUMBER - classPathAndName1.methodName1:1;classPathAndName2.methodName2:2 1253
      *
-     * where 1253 is the items size in bytes
+     * where 1253 is the items size in bytes. This parses a single frame of that format; see EventFormatter.
      *
-     * @param event the event to parse
-     * @param verbosityLevel the verbosityLevel to parse the event into
-     * @return a string representation of the event
+     * @param stackTraceElement the frame to parse
+     * @param verbosityLevel the verbosityLevel to parse the frame into
+     * @return a string representation of the frame
      */
-    public static String parseEvent(final Event event, final VerbosityLevel verbosityLevel){
-        final StringBuilder builder = new StringBuilder();
-        for (int i = event.getTrace().length - 1; i >= 0 ; i--){
-            final StackTraceElement stackTraceElement = event.getTrace()[i];
-            if (stackTraceElement.getClassName() == null || stackTraceElement.getMethodName() == null) {
-                return "";
-            } else if (stackTraceElement.getClassName().startsWith("com.google.monitoring.runtime.instrumentation.")){
-                //truncate the stack trace once it gets into instrumentation
-                break;
-            }
-
-            switch (verbosityLevel){
-                case METHOD_NAME:
-                    builder.append(stackTraceElement.getMethodName());
-                    break;
-                case METHOD_CLASS_NAME:
-                    builder.append(stackTraceElement.getClassName())
-                            .append(".")
-                            .append(stackTraceElement.getMethodName());
-                    break;
-                case METHOD_CLASS_LINE_NUMBER:
-                    builder.append(stackTraceElement.getClassName())
-                            .append(".")
-                            .append(stackTraceElement.getMethodName())
-                            .append(":")
-                            .append(stackTraceElement.getLineNumber());
-                    break;
-            }
-
-            builder.append(";");
+    public static String parseFrame(final StackTraceElement stackTraceElement, final VerbosityLevel verbosityLevel){
+        switch (verbosityLevel){
+            case METHOD_NAME:
+                return stackTraceElement.getMethodName();
+            case METHOD_CLASS_NAME:
+                return stackTraceElement.getClassName() + "." + stackTraceElement.getMethodName();
+            case METHOD_CLASS_LINE_NUMBER:
+            default:
+                return stackTraceElement.getClassName() + "." + stackTraceElement.getMethodName() + ":" +
+                        stackTraceElement.getLineNumber();
         }
-        builder.append(event.getObjectName()).append(" ").append(event.getSize()).append("\n");
-        return builder.toString();
     }
 }
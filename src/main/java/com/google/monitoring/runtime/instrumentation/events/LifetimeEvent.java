@@ -11,16 +11,16 @@ import java.lang.ref.WeakReference;
 public class LifetimeEvent implements Event {
     private final WeakReference<Object> object;
     private final String objectName;
-    private final StackTraceElement[] trace;
+    private final int stackId;
     private final long size;
 
     public LifetimeEvent(final WeakReference<Object> reference,
                          final String objectName,
-                         final StackTraceElement[] trace,
+                         final int stackId,
                          final long size){
         this.object = reference;
         this.objectName = objectName;
-        this.trace = trace;
+        this.stackId = stackId;
         this.size = size;
     }
 
@@ -34,8 +34,8 @@ public class LifetimeEvent implements Event {
     }
 
     @Override
-    public StackTraceElement[] getTrace() {
-        return trace;
+    public int getStackId() {
+        return stackId;
     }
 
     @Override
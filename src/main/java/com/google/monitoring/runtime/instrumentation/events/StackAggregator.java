@@ -0,0 +1,66 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums the sampled bytes of events by stack and object type, for printers that write collapsed stacks
+ * instead of a line per sample. Written out through an EventFormatter the totals are in the format
+ * FlameCollapse produces, one line per distinct stack and type, ready for flamegraph.pl.
+ *
+ * Only the printer thread uses it, so it isn't thread safe.
+ */
+public class StackAggregator {
+    // Object type names by id, so a total is keyed by two ints instead of a string
+    private final Map<String, Integer> objectIds = new HashMap<>();
+    private final List<String> objectNames = new ArrayList<>();
+
+    // Total bytes keyed by stack id in the high half and object id in the low half
+    private final Map<Long, long[]> totals = new HashMap<>();
+
+    public void add(final Event event){
+        final String objectName = event.getObjectName();
+        Integer objectId = objectIds.get(objectName);
+        if (objectId == null){
+            objectId = objectNames.size();
+            objectNames.add(objectName);
+            objectIds.put(objectName, objectId);
+        }
+
+        final Long key = ((long) event.getStackId() << 32) | objectId;
+        long[] total = totals.get(key);
+        if (total == null){
+            total = new long[1];
+            totals.put(key, total);
+        }
+        total[0] += event.getSize();
+    }
+
+    /**
+     * Write a line per stack and object type with its total.
+     *
+     * @param formatter renders the stacks; its output format should write whole stacks
+     * @param writer where to write the totals
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(final EventFormatter formatter, final Writer writer) throws IOException {
+        for (Map.Entry<Long, long[]> entry : totals.entrySet()){
+            final long key = entry.getKey();
+            final int stackId = (int) (key >>> 32);
+            final String objectName = objectNames.get((int) key);
+            formatter.write(new AllocationEvent(entry.getValue()[0], stackId, objectName), writer);
+        }
+    }
+
+    public int size(){
+        return totals.size();
+    }
+
+    public void clear(){
+        totals.clear();
+    }
+}
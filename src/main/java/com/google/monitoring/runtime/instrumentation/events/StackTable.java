@@ -0,0 +1,161 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns stack traces so that events can carry a single int instead of a StackTraceElement[]. Frames are
+ * numbered the first time they're seen and stacks are kept in a trie keyed on frame ids, outermost frame
+ * first, so stacks with the same callers share nodes. Every node is the end of a stack and its stack id
+ * is assigned when the node is created; the root is the empty stack.
+ *
+ * Interning a stack that has been seen before doesn't lock or allocate. Adding a new frame or trie node
+ * locks, which only happens until the application's allocation sites have all been seen.
+ */
+public class StackTable {
+    public static final int EMPTY_STACK = 0;
+
+    private static final String AGENT_PACKAGE = "com.google.monitoring.runtime.instrumentation.";
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final ConcurrentHashMap<StackTraceElement, Integer> frameIds = new ConcurrentHashMap<>();
+    // Indexed by frame id and stack id; guarded by their own monitors
+    private final List<StackTraceElement> frames = new ArrayList<>();
+    private final List<Node> stacks = new ArrayList<>();
+
+    private final Node root;
+
+    public StackTable(){
+        root = newNode(-1, null);
+    }
+
+    /**
+     * Get the id of a stack trace, adding it to the table if it hasn't been seen yet. Like the text
+     * output always has, the stack is truncated at the outermost frame in the instrumentation package.
+     *
+     * @param trace the frames, innermost first as returned by Thread.getStackTrace()
+     * @return the stack id
+     */
+    public int intern(final StackTraceElement[] trace){
+        Node node = root;
+        for (int i = trace.length - 1; i >= 0; i--){
+            final StackTraceElement frame = trace[i];
+            if (frame.getClassName().startsWith(AGENT_PACKAGE)){
+                break;
+            }
+            node = child(node, frameId(frame));
+        }
+        return node.stackId;
+    }
+
+    /**
+     * Get the frame ids that make up a stack.
+     *
+     * @param stackId a stack id returned by intern()
+     * @return the frame ids, outermost first
+     */
+    public int[] frameIds(final int stackId){
+        Node node;
+        synchronized (stacks){
+            node = stacks.get(stackId);
+        }
+        final int[] ids = new int[node.depth];
+        for (int i = ids.length - 1; i >= 0; i--){
+            ids[i] = node.frameId;
+            node = node.parent;
+        }
+        return ids;
+    }
+
+    /**
+     * @param frameId a frame id returned by frameIds()
+     * @return the frame
+     */
+    public StackTraceElement frame(final int frameId){
+        synchronized (frames){
+            return frames.get(frameId);
+        }
+    }
+
+    public int frameCount(){
+        synchronized (frames){
+            return frames.size();
+        }
+    }
+
+    public int stackCount(){
+        synchronized (stacks){
+            return stacks.size();
+        }
+    }
+
+    private int frameId(final StackTraceElement frame){
+        final Integer id = frameIds.get(frame);
+        if (id != null){
+            return id;
+        }
+        synchronized (frames){
+            Integer existing = frameIds.get(frame);
+            if (existing == null){
+                existing = frames.size();
+                frames.add(frame);
+                frameIds.put(frame, existing);
+            }
+            return existing;
+        }
+    }
+
+    private Node child(final Node parent, final int frameId){
+        Node child = parent.find(frameId);
+        if (child != null){
+            return child;
+        }
+        synchronized (parent){
+            child = parent.find(frameId);
+            if (child == null){
+                child = newNode(frameId, parent);
+                final Node[] children = parent.children;
+                final Node[] copy = new Node[children.length + 1];
+                System.arraycopy(children, 0, copy, 0, children.length);
+                copy[children.length] = child;
+                parent.children = copy;
+            }
+            return child;
+        }
+    }
+
+    private Node newNode(final int frameId, final Node parent){
+        synchronized (stacks){
+            final Node node = new Node(frameId, parent, stacks.size());
+            stacks.add(node);
+            return node;
+        }
+    }
+
+    private static final class Node {
+        private final int frameId;
+        private final Node parent;
+        private final int stackId;
+        private final int depth;
+        // Copied on write under the node's monitor so lookups can scan it without locking
+        private volatile Node[] children = NO_CHILDREN;
+
+        private Node(final int frameId, final Node parent, final int stackId){
+            this.frameId = frameId;
+            this.parent = parent;
+            this.stackId = stackId;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        private Node find(final int frameId){
+            final Node[] current = children;
+            for (int i = 0; i < current.length; i++){
+                if (current[i].frameId == frameId){
+                    return current[i];
+                }
+            }
+            return null;
+        }
+    }
+}
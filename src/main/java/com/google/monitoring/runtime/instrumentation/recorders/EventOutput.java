@@ -0,0 +1,121 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import com.google.monitoring.runtime.instrumentation.InstrumentationProperties;
+import com.google.monitoring.runtime.instrumentation.events.BinaryEventFormatter;
+import com.google.monitoring.runtime.instrumentation.events.Event;
+import com.google.monitoring.runtime.instrumentation.events.EventFormatter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * One of a printer's output files, written in the configured output format. The text formats go through
+ * a utf-8 Writer and the binary format is written straight to the stream. Each output starts over with
+ * its own definitions, so every file can be read on its own.
+ *
+ * With output.mmap the file is written through a MappedOutputStream without any buffering of its own, and
+ * endBatch() pushes out what the Writer holds, so everything up to the last batch survives a crash.
+ */
+class EventOutput implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream stream;
+    private final boolean mapped;
+    private final Writer writer;
+    private final EventFormatter formatter;
+    private final BinaryEventFormatter binaryFormatter;
+
+    /**
+     * @param out the file to write to
+     * @param formatter writes the text formats
+     * @param binaryFormatter writes the binary format, or null if the output isn't binary
+     */
+    EventOutput(final OutputStream out,
+                final EventFormatter formatter,
+                final BinaryEventFormatter binaryFormatter) throws IOException {
+        this.mapped = out instanceof MappedOutputStream;
+        this.stream = mapped ? out : new BufferedOutputStream(out, BUFFER_SIZE);
+        this.formatter = formatter;
+        this.binaryFormatter = binaryFormatter;
+        if (binaryFormatter != null){
+            writer = null;
+            binaryFormatter.writeHeader(stream);
+        } else {
+            writer = new BufferedWriter(new OutputStreamWriter(stream, "utf-8"));
+            formatter.reset();
+        }
+    }
+
+    /**
+     * Open an output file as configured by the properties.
+     *
+     * @param path the file to write, which is truncated
+     */
+    static EventOutput open(final String path,
+                            final InstrumentationProperties properties,
+                            final EventFormatter formatter,
+                            final BinaryEventFormatter binaryFormatter) throws IOException {
+        final OutputStream out;
+        if (properties.mmapOutput()){
+            out = new MappedOutputStream(path, properties.segmentBytes());
+        } else {
+            out = new FileOutputStream(path);
+        }
+        return new EventOutput(out, formatter, binaryFormatter);
+    }
+
+    void write(final Event event) throws IOException {
+        if (writer == null){
+            binaryFormatter.write(event, stream);
+        } else {
+            formatter.write(event, writer);
+        }
+    }
+
+    /**
+     * Write a "#name value" meta line, or its binary equivalent.
+     */
+    void writeMeta(final String name, final long value) throws IOException {
+        if (writer == null){
+            binaryFormatter.writeMeta(name, value, stream);
+        } else {
+            writer.write("#");
+            writer.write(name);
+            writer.write(" ");
+            writer.write(Long.toString(value));
+            writer.write("\n");
+        }
+    }
+
+    /**
+     * Called by the printer after each batch of events. A mapped output moves what the Writer has buffered
+     * into the mapping; other outputs keep buffering.
+     */
+    void endBatch() throws IOException {
+        if (mapped && writer != null){
+            writer.flush();
+        }
+    }
+
+    void flush() throws IOException {
+        if (writer != null){
+            writer.flush();
+        }
+        stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null){
+            writer.close();
+        } else {
+            stream.close();
+        }
+    }
+}
@@ -2,52 +2,104 @@ package com.google.monitoring.runtime.instrumentation.recorders;
 
 import com.google.monitoring.runtime.instrumentation.InstrumentationProperties;
 import com.google.monitoring.runtime.instrumentation.events.AllocationEvent;
+import com.google.monitoring.runtime.instrumentation.events.BinaryEventFormatter;
+import com.google.monitoring.runtime.instrumentation.events.EventFormatter;
 import com.google.monitoring.runtime.instrumentation.events.EventParser;
+import com.google.monitoring.runtime.instrumentation.events.StackAggregator;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
 
 import java.io.*;
-import java.time.LocalTime;
-import java.util.Properties;
-import java.util.concurrent.BlockingQueue;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Pulls AllocationEvent's off of the queue and outputs the data in the desired form.
+ * Pulls AllocationEvent's off of the recording threads' ring buffers and outputs the data in the desired form.
+ * With the collapsed output format the events are summed by stack instead, and every collapse interval the
+ * current output file is replaced with the totals so far.
  *
  * Created by jmaloney on 5/23/2016.
  */
-public class FlamePrinter extends Thread {
-    private BlockingQueue<AllocationEvent> queue;
-    private Writer writer;
-    private final EventParser.VerbosityLevel verbosityLevel;
-    private AtomicInteger count=new AtomicInteger();
+public class FlamePrinter extends Thread implements Printer {
+    private static final int BATCH_SIZE = 256;
+    // How long an idle printer parks before checking for rotation again
+    private static final long IDLE_PARK_MS = 100;
+
+    private ThreadRingBuffers<AllocationEvent> buffers;
+    private final List<AllocationEvent> batch = new ArrayList<>(BATCH_SIZE);
+    private long reportedDropped = 0;
+    // Not opened for the collapsed output format, whose snapshots replace the file instead
+    private EventOutput output;
+    private final EventFormatter formatter;
+    // Only set for the binary output format
+    private final BinaryEventFormatter binaryFormatter;
+    // Only set for the collapsed output format
+    private final StackAggregator aggregator;
+    private final long collapseInterval;
+    private long lastCollapse = System.currentTimeMillis();
+    private volatile String path;
+    // Shared so a printer that replaces another one doesn't reuse its file names
+    private static final AtomicInteger count=new AtomicInteger();
     private static long _1hour=3600*1000L;
     private static long _1min=60*1000L;
     private static long _1sec=1000;
     private long lastCreateFile=System.currentTimeMillis();
     private InstrumentationProperties properties;
+    private volatile boolean finishing = false;
 
 
 
 
-    public FlamePrinter(final InstrumentationProperties properties) throws FileNotFoundException, UnsupportedEncodingException {
+    public FlamePrinter(final InstrumentationProperties properties, final StackTable stackTable) throws IOException {
        this.properties=properties;
-        writer = new BufferedWriter(new OutputStreamWriter( new FileOutputStream(properties.outputPath()+count.getAndIncrement()), "utf-8"));
-        verbosityLevel = properties.verbosityLevel();
+        formatter = new EventFormatter(stackTable, properties.verbosityLevel(), properties.outputFormat());
+        if (properties.outputFormat() == EventParser.OutputFormat.BINARY) {
+            binaryFormatter = new BinaryEventFormatter(stackTable, formatter);
+        } else {
+            binaryFormatter = null;
+        }
+        path = properties.outputPath()+count.getAndIncrement();
+        if (properties.outputFormat() == EventParser.OutputFormat.COLLAPSED) {
+            aggregator = new StackAggregator();
+        } else {
+            aggregator = null;
+            output = EventOutput.open(path, properties, formatter, binaryFormatter);
+        }
+        collapseInterval = properties.collapseIntervalSecs() * _1sec;
+    }
+
+    @Override
+    public void finish() throws InterruptedException, IOException {
+        finishing = true;
+        join();
+        close();
     }
 
+    @Override
     public void close() throws IOException {
-        writer.close();
+        if (aggregator != null) {
+            writeCollapsed();
+            return;
+        }
+        output.close();
     }
 
     private void process(final AllocationEvent event){
-        final String entry = EventParser.parseEvent(event, verbosityLevel);
-        if (!entry.equals("")) {
-            try {
-                writer.write(entry);
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (aggregator != null) {
+            // close() writes the totals from the shutdown hook's thread
+            synchronized (aggregator) {
+                aggregator.add(event);
             }
+            return;
+        }
+        try {
+            output.write(event);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -55,14 +107,21 @@ public class FlamePrinter extends Thread {
         try {
             long now=System.currentTimeMillis();
             if (now-lastCreateFile>_1hour) {
-                writer.close();
+                if (aggregator != null) {
+                    // Finish the old file with the last hour's totals
+                    synchronized (aggregator) {
+                        writeCollapsed();
+                        aggregator.clear();
+                    }
+                } else {
+                    output.close();
+                }
                 lastCreateFile = now;
-                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(properties.outputPath() +count.getAndIncrement()), "utf-8"));
+                path = properties.outputPath() +count.getAndIncrement();
+                if (aggregator == null) {
+                    output = EventOutput.open(path, properties, formatter, binaryFormatter);
+                }
             }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -70,35 +129,81 @@ public class FlamePrinter extends Thread {
 
     }
 
-    public void setQueue(final BlockingQueue<AllocationEvent> queue){
-        this.queue = queue;
+    public void setBuffers(final ThreadRingBuffers<AllocationEvent> buffers){
+        this.buffers = buffers;
     }
 
     @Override
     public void run() {
         Thread.currentThread().setName("FlamePrinter");
         for(;;){
+            // Rotation and the collapse interval are checked once per batch, or once per wakeup when idle
+            newWriter();
+            if (aggregator != null && System.currentTimeMillis() - lastCollapse >= collapseInterval) {
+                writeCollapsed();
+            }
+            if (buffers.drainTo(batch, BATCH_SIZE) == 0) {
+                if (finishing) {
+                    return;
+                }
+                buffers.awaitEvents(IDLE_PARK_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                process(batch.get(i));
+            }
+            batch.clear();
+            reportDropped();
+            endBatch();
+        }
+    }
+
+    // Replaces the current output file with the collapsed totals. The totals are written to a temporary file
+    // first so the output file always holds a complete snapshot.
+    private void writeCollapsed() {
+        lastCollapse = System.currentTimeMillis();
+        final String tmpPath = path + ".tmp";
+        synchronized (aggregator) {
             try {
-                newWriter();
-                final AllocationEvent event = queue.poll(1, TimeUnit.MILLISECONDS);
-                if (event != null&&!isIgnore()) {
-                    process(event);
+                final Writer snapshot = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpPath), "utf-8"));
+                try {
+                    aggregator.writeTo(formatter, snapshot);
+                } finally {
+                    snapshot.close();
                 }
-            } catch (InterruptedException e) {
+                Files.move(Paths.get(tmpPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private boolean isIgnore() {
-        try {
-            if (new File("/tmp/allocation.flag").exists()) {
-                return false;
+    // Writes a "#dropped <total>" meta line whenever more events have been dropped by full buffers
+    private void reportDropped() {
+        if (aggregator != null) {
+            // The collapsed output is only stack lines
+            return;
+        }
+        final long dropped = buffers.dropped();
+        if (dropped != reportedDropped) {
+            reportedDropped = dropped;
+            try {
+                output.writeMeta("dropped", dropped);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            return true;
         }
-        return true;
+    }
+
+    private void endBatch() {
+        if (aggregator != null) {
+            return;
+        }
+        try {
+            output.endBatch();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 
@@ -1,34 +1,52 @@
 package com.google.monitoring.runtime.instrumentation.recorders;
 
 import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
 import com.google.monitoring.runtime.instrumentation.ObjectSizeMeasurement;
 import com.google.monitoring.runtime.instrumentation.events.AllocationEvent;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
 
 import java.lang.instrument.Instrumentation;
-import java.util.concurrent.BlockingQueue;
 
 /**
- * Samples memory allocations. Each invocation makes an AllocationEvent which is put onto a queue to be processed on a
+ * Samples memory allocations. Each invocation makes an AllocationEvent which is put onto the thread's ring buffer to be processed on a
  * separate thread. The sampleAllocation method is executed on the same thread where the actual allocation occurs.
  *
+ * With a stack depth of 1 the frame comes from the allocation site's id, and the stack isn't captured at all.
+ *
  * Created by jmaloney on 5/23/2016.
  */
 public class FlameRecorder implements Recorder {
 
-    private final BlockingQueue queue;
+    private final ThreadRingBuffers<AllocationEvent> buffers;
+    private final StackTable stackTable;
     private final long id;
     private final boolean recordSize;
+    private final int maxStackDepth;
+    private final FrameFilter skip;
 
-    public FlameRecorder(final BlockingQueue queue,
+    public FlameRecorder(final ThreadRingBuffers<AllocationEvent> buffers,
+                         final StackTable stackTable,
                          final long id,
-                         final boolean recordSize){
-        this.queue = queue;
+                         final boolean recordSize,
+                         final int maxStackDepth,
+                         final FrameFilter skip){
+        this.buffers = buffers;
+        this.stackTable = stackTable;
         this.id = id;
         this.recordSize = recordSize;
+        this.maxStackDepth = maxStackDepth;
+        this.skip = skip;
     }
 
     @Override
     public void record(final int count, final String desc, final Object newObj){
+        record(count, desc, newObj, AllocationSite.UNKNOWN);
+    }
+
+    @Override
+    public void record(final int count, final String desc, final Object newObj, final int site){
         if (Thread.currentThread().getId() != id) {
             final long objectSize;
             final Instrumentation instr;
@@ -41,11 +59,23 @@ public class FlameRecorder implements Recorder {
             } else {
                 objectSize = 1;
             }
+            // Record what the sample stands for rather than just the sampled object
+            final long weight = AllocationRecorder.getSampleStrategy().weigh(objectSize);
 
-            StackTraceElement[] trace = Thread.currentThread().getStackTrace();
-            AllocationEvent allocationEvent = new AllocationEvent(objectSize, trace, desc);
-            queue.offer(allocationEvent);
+            final int stackId = stackTable.intern(stack(site));
+            AllocationEvent allocationEvent = new AllocationEvent(weight, stackId, desc);
+            buffers.offer(allocationEvent);
+        }
+    }
+
+    private StackTraceElement[] stack(final int site) {
+        if (maxStackDepth == 1) {
+            final AllocationSite allocationSite = AllocationSites.get(site);
+            if (allocationSite != null && !skip.test(allocationSite.getFrame().getClassName())) {
+                return new StackTraceElement[]{allocationSite.getFrame()};
+            }
         }
+        return StackCapture.capture(maxStackDepth, skip);
     }
 
 
@@ -0,0 +1,70 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The frames StackCapture leaves out of the stacks it captures, by class name: reflection accessors,
+ * method handle and lambda plumbing, dynamic proxies and the like, which add depth to every stack without
+ * saying anything about who allocated. Skipped frames don't count towards stack.max.depth.
+ *
+ * The list is parsed once into the prefixes and the substrings to look for, so testing a frame only
+ * compares strings. An entry is a prefix of the class name, or with a leading '*' a string found anywhere
+ * in it, like "*$$Lambda" for lambda classes.
+ */
+public final class FrameFilter implements Predicate<String> {
+    /**
+     * Skips nothing.
+     */
+    public static final FrameFilter NONE = new FrameFilter(new String[0], new String[0]);
+
+    private final String[] prefixes;
+    private final String[] substrings;
+
+    private FrameFilter(final String[] prefixes, final String[] substrings) {
+        this.prefixes = prefixes;
+        this.substrings = substrings;
+    }
+
+    /**
+     * Parse the stack.skip.frames property.
+     *
+     * @param value a comma separated list of class name prefixes and '*' substrings
+     * @return the filter
+     */
+    public static FrameFilter parse(final String value) {
+        final List<String> prefixes = new ArrayList<>();
+        final List<String> substrings = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.startsWith("*")) {
+                if (entry.length() > 1) {
+                    substrings.add(entry.substring(1));
+                }
+            } else if (!entry.isEmpty()) {
+                prefixes.add(entry);
+            }
+        }
+        return new FrameFilter(prefixes.toArray(new String[0]), substrings.toArray(new String[0]));
+    }
+
+    /**
+     * @param className the frame's class name, like java.lang.String
+     * @return true if the frame is left out
+     */
+    @Override
+    public boolean test(final String className) {
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String substring : substrings) {
+            if (className.contains(substring)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,90 +1,108 @@
 package com.google.monitoring.runtime.instrumentation.recorders;
 
 import com.google.monitoring.runtime.instrumentation.InstrumentationProperties;
+import com.google.monitoring.runtime.instrumentation.events.BinaryEventFormatter;
+import com.google.monitoring.runtime.instrumentation.events.EventFormatter;
 import com.google.monitoring.runtime.instrumentation.events.EventParser;
 import com.google.monitoring.runtime.instrumentation.events.LifetimeEvent;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
 
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by jmaloney on 10/10/16.
  */
-public class LifetimePrinter extends Thread {
+public class LifetimePrinter extends Thread implements Printer {
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_MS = 100;
 
-    private BlockingQueue<LifetimeEvent> queue;
-    private final Writer writer;
+    private ThreadRingBuffers<LifetimeEvent> buffers;
+    private final EventOutput output;
     private final List<LifetimeEvent> eventList = new ArrayList<>();
     private long gcCount = 0;
     private GarbageCollectorMXBean gcBean;
-    private final EventParser.VerbosityLevel verbosityLevel;
+    private volatile boolean finishing = false;
 
-    public LifetimePrinter(final InstrumentationProperties properties) throws FileNotFoundException, UnsupportedEncodingException {
-        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(properties.outputPath()), "utf-8"));
-        verbosityLevel = properties.verbosityLevel();
+    // Printers after the first write to numbered files so they don't truncate an earlier printer's output
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    public LifetimePrinter(final InstrumentationProperties properties, final StackTable stackTable) throws IOException {
+        final EventFormatter formatter = new EventFormatter(stackTable, properties.verbosityLevel(), properties.outputFormat());
+        BinaryEventFormatter binaryFormatter = null;
+        if (properties.outputFormat() == EventParser.OutputFormat.BINARY){
+            binaryFormatter = new BinaryEventFormatter(stackTable, formatter);
+        }
+        final int number = generation.getAndIncrement();
+        final String path = number == 0 ? properties.outputPath() : properties.outputPath() + number;
+        output = EventOutput.open(path, properties, formatter, binaryFormatter);
 
         for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
             if (gc.getName().equals("ParNew") || gc.getName().equals("G1_Young_Generation")){
                 gcBean = gc;
             }
         }
+        if (gcBean == null){
+            // Other collectors, and G1 on newer JVMs, go by different names; the young collector comes first
+            gcBean = ManagementFactory.getGarbageCollectorMXBeans().get(0);
+        }
     }
 
     @Override
     public void run() {
         Thread.currentThread().setName("LifetimePrinter");
         for(;;){
-            try {
-                if (gcCount < gcBean.getCollectionCount()){
+            if (gcCount < gcBean.getCollectionCount()){
+                processEventList();
+                buffers.clear();
+                gcCount = gcBean.getCollectionCount();
+            } else if (buffers.drainTo(eventList, BATCH_SIZE) == 0) {
+                if (finishing) {
+                    // Write out what's alive now rather than waiting for the next GC
                     processEventList();
-                    queue.clear();
-                    gcCount = gcBean.getCollectionCount();
-                } else {
-                    final LifetimeEvent event = queue.poll(1, TimeUnit.MILLISECONDS);
-                    if (event != null) {
-                        eventList.add(event);
-                    }
+                    return;
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                // A GC doesn't wake the printer, so an idle printer notices it within IDLE_PARK_MS
+                buffers.awaitEvents(IDLE_PARK_MS, TimeUnit.MILLISECONDS);
             }
         }
     }
 
     private void processEventList(){
         try {
-            writer.write("#GC ");
-            writer.write(Long.toString(gcCount));
-            writer.write("\n");
+            output.writeMeta("GC", gcCount);
+            output.writeMeta("dropped", buffers.dropped());
             for(int i = 0; i < eventList.size(); i++){
                 final LifetimeEvent event = eventList.get(i);
                 if (event.alive()){
-                    final String parsed = EventParser.parseEvent(event, verbosityLevel);
-                    writer.write(parsed);
+                    output.write(event);
                 }
             }
+            output.endBatch();
         } catch (IOException e) {
             System.err.println("Exception in the LifetimePrinter thread printing!");
         }
         eventList.clear();
     }
 
-    public void setQueue(final BlockingQueue<LifetimeEvent> queue) {
-        this.queue = queue;
+    public void setBuffers(final ThreadRingBuffers<LifetimeEvent> buffers) {
+        this.buffers = buffers;
     }
 
+    @Override
+    public void finish() throws InterruptedException, IOException {
+        finishing = true;
+        join();
+        close();
+    }
+
+    @Override
     public void close() throws IOException {
-        writer.flush();
+        output.close();
     }
 }
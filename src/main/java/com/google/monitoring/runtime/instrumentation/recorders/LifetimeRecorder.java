@@ -3,26 +3,35 @@ package com.google.monitoring.runtime.instrumentation.recorders;
 import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
 import com.google.monitoring.runtime.instrumentation.ObjectSizeMeasurement;
 import com.google.monitoring.runtime.instrumentation.events.LifetimeEvent;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
 
 import java.lang.instrument.Instrumentation;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * Created by jmaloney on 10/10/16.
  */
 public class LifetimeRecorder implements Recorder {
 
-    private final BlockingQueue<LifetimeEvent> queue;
+    private final ThreadRingBuffers<LifetimeEvent> buffers;
+    private final StackTable stackTable;
     private final long id;
     private final boolean recordSize;
+    private final int maxStackDepth;
+    private final FrameFilter skip;
 
-    public LifetimeRecorder(final BlockingQueue<LifetimeEvent> queue,
+    public LifetimeRecorder(final ThreadRingBuffers<LifetimeEvent> buffers,
+                            final StackTable stackTable,
                             final long id,
-                            final boolean recordSize){
-        this.queue = queue;
+                            final boolean recordSize,
+                            final int maxStackDepth,
+                            final FrameFilter skip){
+        this.buffers = buffers;
+        this.stackTable = stackTable;
         this.id = id;
         this.recordSize = recordSize;
+        this.maxStackDepth = maxStackDepth;
+        this.skip = skip;
     }
 
     @Override
@@ -39,10 +48,11 @@ public class LifetimeRecorder implements Recorder {
             } else {
                 objectSize = 1;
             }
+            final long weight = AllocationRecorder.getSampleStrategy().weigh(objectSize);
 
-            StackTraceElement[] trace = Thread.currentThread().getStackTrace();
-            LifetimeEvent lifetimeEvent = new LifetimeEvent(new WeakReference<>(newObj), desc, trace, objectSize);
-            queue.offer(lifetimeEvent);
+            final int stackId = stackTable.intern(StackCapture.capture(maxStackDepth, skip));
+            LifetimeEvent lifetimeEvent = new LifetimeEvent(new WeakReference<>(newObj), desc, stackId, weight);
+            buffers.offer(lifetimeEvent);
         }
     }
 }
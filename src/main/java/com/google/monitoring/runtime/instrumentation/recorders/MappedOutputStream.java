@@ -0,0 +1,76 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An OutputStream that writes a file through memory mapped segments of a fixed size. A write is a copy into
+ * the current segment and when a segment fills up the next one is mapped after it. Whatever has been
+ * written is in the page cache, so it reaches the file even if the JVM is killed without running its
+ * shutdown hooks.
+ *
+ * Until the stream is closed the file extends to the end of the current segment, and the part that hasn't
+ * been written yet reads as zeros. close() truncates the file to what was written. FlameCollapse skips the
+ * zeros of a file that wasn't closed.
+ */
+class MappedOutputStream extends OutputStream {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int segmentSize;
+
+    private MappedByteBuffer segment;
+    private long segmentStart;
+
+    /**
+     * @param path the file to write, which is truncated
+     * @param segmentSize the number of bytes to map at a time
+     */
+    MappedOutputStream(final String path, final int segmentSize) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.segmentSize = segmentSize;
+        file.setLength(0);
+        map(0);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (!segment.hasRemaining()){
+            map(segmentStart + segmentSize);
+        }
+        segment.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0){
+            if (!segment.hasRemaining()){
+                map(segmentStart + segmentSize);
+            }
+            final int length = Math.min(len, segment.remaining());
+            segment.put(b, off, length);
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (segment == null){
+            return;
+        }
+        final long length = segmentStart + segment.position();
+        // The mapping itself is released when the buffer is collected
+        segment = null;
+        channel.truncate(length);
+        file.close();
+    }
+
+    private void map(final long start) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize);
+        segmentStart = start;
+    }
+}
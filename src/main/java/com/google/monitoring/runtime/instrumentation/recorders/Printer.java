@@ -0,0 +1,32 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.io.IOException;
+
+/**
+ * The thread that takes a recorder's events off its ring buffers and writes them out.
+ */
+public interface Printer {
+
+    void start();
+
+    /**
+     * The id recorders pass to ThreadRingBuffers so the printer's own allocations aren't recorded.
+     */
+    long getId();
+
+    /**
+     * Stop the printer once it has written the events already recorded, then close its output. Used when
+     * the recorder is replaced while the JVM keeps running.
+     *
+     * @throws InterruptedException if interrupted waiting for the printer to drain
+     * @throws IOException if the output fails to close
+     */
+    void finish() throws InterruptedException, IOException;
+
+    /**
+     * Close the output right away, from a shutdown hook.
+     *
+     * @throws IOException if the output fails to close
+     */
+    void close() throws IOException;
+}
@@ -5,4 +5,21 @@ package com.google.monitoring.runtime.instrumentation.recorders;
  */
 public interface Recorder {
     void record(int count, String desc, Object newObj);
+
+    /**
+     * Record an allocation made at an instrumented site. The site's class, method and line come from
+     * AllocationSites.get(site), so a recorder that only needs those can skip capturing the stack.
+     *
+     * @param site the site's id, or AllocationSite.UNKNOWN
+     */
+    default void record(final int count, final String desc, final Object newObj, final int site) {
+        record(count, desc, newObj);
+    }
+
+    /**
+     * @return true if the recorder is given every allocation, bypassing the sample strategy
+     */
+    default boolean recordsEveryAllocation() {
+        return false;
+    }
 }
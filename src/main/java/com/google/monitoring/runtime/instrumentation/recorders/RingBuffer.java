@@ -0,0 +1,99 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer, single-consumer ring buffer. The producer only ever writes tail and the
+ * consumer only ever writes head, so neither side takes a lock; each publishes its progress with an
+ * ordered store that the other side picks up with a volatile read.
+ */
+final class RingBuffer<E> {
+    private final Object[] buffer;
+    private final int mask;
+
+    // Next slot the consumer reads
+    private final AtomicLong head = new AtomicLong();
+    // Next slot the producer writes
+    private final AtomicLong tail = new AtomicLong();
+    // Events the producer couldn't fit; only the producer writes it
+    private final AtomicLong dropped = new AtomicLong();
+
+    // The producer's last view of head, so a producer that isn't close to full doesn't read head at all
+    private long headCache = 0;
+
+    private final Thread owner;
+
+    /**
+     * @param capacity the number of events the buffer holds, rounded up to a power of two
+     * @param owner the producing thread
+     */
+    RingBuffer(final int capacity, final Thread owner){
+        final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+        this.owner = owner;
+    }
+
+    /**
+     * Producer side. Adds the event unless the buffer is full.
+     *
+     * @param event the event to add
+     * @return false if the event was dropped
+     */
+    boolean offer(final E event){
+        final long currentTail = tail.get();
+        if (currentTail - headCache > mask){
+            headCache = head.get();
+            if (currentTail - headCache > mask){
+                dropped.lazySet(dropped.get() + 1);
+                return false;
+            }
+        }
+        buffer[(int) currentTail & mask] = event;
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Moves up to max events into the collection.
+     *
+     * @return the number of events moved
+     */
+    @SuppressWarnings("unchecked")
+    int drainTo(final Collection<? super E> collection, final int max){
+        final long currentHead = head.get();
+        final int available = (int) Math.min(tail.get() - currentHead, max);
+        for (int i = 0; i < available; i++){
+            final int index = (int) (currentHead + i) & mask;
+            collection.add((E) buffer[index]);
+            buffer[index] = null;
+        }
+        head.lazySet(currentHead + available);
+        return available;
+    }
+
+    /**
+     * Consumer side. Discards everything currently in the buffer.
+     */
+    void clear(){
+        final long currentHead = head.get();
+        final long currentTail = tail.get();
+        for (long i = currentHead; i < currentTail; i++){
+            buffer[(int) i & mask] = null;
+        }
+        head.lazySet(currentTail);
+    }
+
+    boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    long dropped(){
+        return dropped.get();
+    }
+
+    Thread owner(){
+        return owner;
+    }
+}
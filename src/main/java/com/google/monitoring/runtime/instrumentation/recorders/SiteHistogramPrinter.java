@@ -0,0 +1,82 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import com.google.monitoring.runtime.instrumentation.InstrumentationProperties;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a SiteHistogramRecorder's totals every collapse interval, replacing the output file each time so
+ * it always holds one complete snapshot. The totals keep growing; compare two snapshots for a rate.
+ */
+public class SiteHistogramPrinter extends Thread implements Printer {
+    // Shared so a printer that replaces another one doesn't reuse its file name
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private final String path;
+    private final long interval;
+    private SiteHistogramRecorder recorder;
+    private volatile boolean finishing = false;
+
+    public SiteHistogramPrinter(final InstrumentationProperties properties) {
+        path = properties.outputPath() + count.getAndIncrement();
+        interval = TimeUnit.SECONDS.toMillis(properties.collapseIntervalSecs());
+        // The totals are written from the shutdown hook, so this thread needn't keep the JVM up
+        setDaemon(true);
+    }
+
+    public void setRecorder(final SiteHistogramRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setName("SiteHistogramPrinter");
+        while (!finishing) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // finish() wakes the printer up to stop
+                continue;
+            }
+            writeSnapshot();
+        }
+    }
+
+    @Override
+    public void finish() throws InterruptedException, IOException {
+        finishing = true;
+        interrupt();
+        join();
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeSnapshot();
+    }
+
+    // The snapshot is written to a temporary file first so the output file is never half written
+    private synchronized void writeSnapshot() {
+        final String tmpPath = path + ".tmp";
+        try {
+            final Writer snapshot = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpPath), "utf-8"));
+            try {
+                recorder.writeTo(snapshot);
+            } finally {
+                snapshot.close();
+            }
+            Files.move(Paths.get(tmpPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
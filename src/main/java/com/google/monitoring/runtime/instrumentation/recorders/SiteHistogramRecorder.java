@@ -0,0 +1,186 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
+import com.google.monitoring.runtime.instrumentation.ObjectSizeMeasurement;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts every allocation, and its bytes when record.size is set, by allocation site. Nothing is sampled,
+ * no stack is captured and nothing is queued: an allocation adds to two counters, so the totals are exact
+ * and cheap enough to leave on.
+ *
+ * The counters are striped by thread. Each stripe is its own array, padded by a cache line at both ends,
+ * so threads on different stripes never write to the same cache line. A chunk of sites is added when one
+ * of its sites first allocates, and a snapshot sums the stripes.
+ */
+public class SiteHistogramRecorder implements Recorder {
+    // Sites per chunk. New chunks are added beside the old ones, so no counts are lost to copying.
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SITES = 1 << CHUNK_BITS;
+    // A cache line of longs before and after each stripe's counters
+    private static final int PAD = 8;
+    private static final int MAX_STRIPES = 64;
+
+    private final long id;
+    private final boolean recordSize;
+    private final int stripeMask;
+    private final Object lock = new Object();
+    // Indexed by chunk then stripe, null for a chunk none of whose sites has allocated. Written under the
+    // lock, read without it.
+    private volatile AtomicLongArray[][] chunks = new AtomicLongArray[0][];
+
+    /**
+     * @param id the id of the thread whose allocations aren't counted, the printer's
+     * @param recordSize whether to count bytes as well as allocations
+     */
+    public SiteHistogramRecorder(final long id, final boolean recordSize) {
+        this.id = id;
+        this.recordSize = recordSize;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+    }
+
+    @Override
+    public boolean recordsEveryAllocation() {
+        return true;
+    }
+
+    @Override
+    public void record(final int count, final String desc, final Object newObj) {
+        record(count, desc, newObj, AllocationSite.UNKNOWN);
+    }
+
+    @Override
+    public void record(final int count, final String desc, final Object newObj, final int site) {
+        final long threadId = Thread.currentThread().getId();
+        if (threadId == id) {
+            return;
+        }
+        // Slot 0 counts the allocations without a site id
+        final int slot = site < 0 ? 0 : site + 1;
+        final AtomicLongArray stripe = chunk(slot >>> CHUNK_BITS)[stripe(threadId)];
+        final int index = PAD + 2 * (slot & (CHUNK_SITES - 1));
+        stripe.incrementAndGet(index);
+        final Instrumentation instr;
+        if (recordSize && (instr = AllocationRecorder.getInstrumentation()) != null) {
+            stripe.addAndGet(index + 1, ObjectSizeMeasurement.getObjectSize(newObj, (count >= 0), instr));
+        }
+    }
+
+    /**
+     * @param site a site id, or AllocationSite.UNKNOWN
+     * @return the allocations counted at the site
+     */
+    public long count(final int site) {
+        return sum(site < 0 ? 0 : site + 1, 0);
+    }
+
+    /**
+     * @param site a site id, or AllocationSite.UNKNOWN
+     * @return the bytes counted at the site, 0 unless record.size is set
+     */
+    public long bytes(final int site) {
+        return sum(site < 0 ? 0 : site + 1, 1);
+    }
+
+    /**
+     * Write the totals of every site that has allocated, most bytes first and then most allocations, as
+     * "count bytes class.method(desc)#ordinal:line type" lines, see AllocationSite.getKey().
+     *
+     * @param out where to write them
+     * @throws IOException if writing fails
+     */
+    public void writeTo(final Writer out) throws IOException {
+        final List<long[]> totals = new ArrayList<>();
+        final AtomicLongArray[][] current = chunks;
+        for (int chunk = 0; chunk < current.length; chunk++) {
+            if (current[chunk] == null) {
+                continue;
+            }
+            for (int slot = chunk << CHUNK_BITS; slot < (chunk + 1) << CHUNK_BITS; slot++) {
+                final long count = sum(slot, 0);
+                if (count > 0) {
+                    totals.add(new long[]{slot, count, sum(slot, 1)});
+                }
+            }
+        }
+        Collections.sort(totals, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] a, final long[] b) {
+                if (a[2] != b[2]) {
+                    return Long.compare(b[2], a[2]);
+                }
+                return Long.compare(b[1], a[1]);
+            }
+        });
+        out.write("# count bytes site\n");
+        for (long[] total : totals) {
+            out.write(total[1] + " " + total[2] + " " + describe((int) total[0] - 1) + "\n");
+        }
+    }
+
+    private static String describe(final int site) {
+        final AllocationSite allocationSite = AllocationSites.get(site);
+        if (allocationSite == null) {
+            return "(unknown site)";
+        }
+        return allocationSite.getKey();
+    }
+
+    // The counter at offset (0 for allocations, 1 for bytes) of the slot, summed over the stripes
+    private long sum(final int slot, final int offset) {
+        final AtomicLongArray[][] current = chunks;
+        final int chunk = slot >>> CHUNK_BITS;
+        if (chunk >= current.length || current[chunk] == null) {
+            return 0;
+        }
+        final int index = PAD + 2 * (slot & (CHUNK_SITES - 1)) + offset;
+        long total = 0;
+        for (AtomicLongArray stripe : current[chunk]) {
+            total += stripe.get(index);
+        }
+        return total;
+    }
+
+    private int stripe(final long threadId) {
+        // Thread ids are sequential, so spread them before masking
+        return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & stripeMask;
+    }
+
+    private AtomicLongArray[] chunk(final int chunk) {
+        AtomicLongArray[][] current = chunks;
+        if (chunk < current.length && current[chunk] != null) {
+            return current[chunk];
+        }
+        synchronized (lock) {
+            current = chunks;
+            if (chunk >= current.length) {
+                final AtomicLongArray[][] grown = new AtomicLongArray[Math.max(chunk + 1, current.length * 2)][];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[chunk] == null) {
+                final AtomicLongArray[] stripes = new AtomicLongArray[stripeMask + 1];
+                for (int stripe = 0; stripe <= stripeMask; stripe++) {
+                    stripes[stripe] = new AtomicLongArray(PAD + 2 * CHUNK_SITES + PAD);
+                }
+                current[chunk] = stripes;
+            }
+            chunks = current;
+            return current[chunk];
+        }
+    }
+}
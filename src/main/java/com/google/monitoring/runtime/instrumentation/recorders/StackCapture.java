@@ -0,0 +1,125 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Captures the allocating thread's stack for the recorders, leaving out the agent's own frames at the
+ * top of the stack and any frames the skip list matches, and keeping at most maxDepth frames below them.
+ *
+ * This is the Java 8 version. It reads the frames of a new Throwable one at a time through the JDK's
+ * JavaLangAccess, so only the frames it looks at become StackTraceElements. Creating the Throwable still
+ * walks the whole stack into its backtrace, so a bounded capture saves the elements below maxDepth but
+ * still costs more the deeper the stack is. Where JavaLangAccess isn't available it falls back to
+ * getStackTrace(), which materializes the whole stack. On Java 9+ the multi-release jar replaces this class with a StackWalker
+ * based version (src/main/java9).
+ */
+public final class StackCapture {
+    static final String AGENT_PACKAGE = "com.google.monitoring.runtime.instrumentation.";
+
+    private static final Predicate<String> NO_SKIP = className -> false;
+
+    // (Throwable)int and (Throwable, int)StackTraceElement, bound to the JavaLangAccess; null if unavailable
+    private static final MethodHandle depth;
+    private static final MethodHandle element;
+
+    static {
+        MethodHandle depthHandle = null;
+        MethodHandle elementHandle = null;
+        try {
+            final Class<?> secrets = Class.forName("sun.misc.SharedSecrets");
+            final Object access = secrets.getMethod("getJavaLangAccess").invoke(null);
+            final Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            depthHandle = lookup.findVirtual(accessClass, "getStackTraceDepth",
+                    MethodType.methodType(int.class, Throwable.class)).bindTo(access);
+            elementHandle = lookup.findVirtual(accessClass, "getStackTraceElement",
+                    MethodType.methodType(StackTraceElement.class, Throwable.class, int.class)).bindTo(access);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            depthHandle = null;
+            elementHandle = null;
+        }
+        depth = depthHandle;
+        element = elementHandle;
+    }
+
+    private StackCapture(){
+    }
+
+    /**
+     * Get the calling thread's stack, starting at the frame that performed the allocation.
+     *
+     * @param maxDepth the maximum number of frames to keep, or 0 or less to keep them all
+     * @return the frames, innermost first, like Thread.getStackTrace()
+     */
+    public static StackTraceElement[] capture(final int maxDepth){
+        return capture(maxDepth, NO_SKIP);
+    }
+
+    /**
+     * Get the calling thread's stack, starting at the frame that performed the allocation.
+     *
+     * @param maxDepth the maximum number of frames to keep, or 0 or less to keep them all
+     * @param skip the class names of frames to leave out, see FrameFilter
+     * @return the frames, innermost first, like Thread.getStackTrace()
+     */
+    public static StackTraceElement[] capture(final int maxDepth, final Predicate<String> skip){
+        if (element != null){
+            try {
+                return captureLazily(maxDepth, skip);
+            } catch (Throwable e) {
+                // Fall through to the whole stack
+            }
+        }
+        final StackTraceElement[] trace = Thread.currentThread().getStackTrace();
+        final StackTraceElement[] kept = new StackTraceElement[bound(maxDepth, trace.length)];
+        int count = 0;
+        int i = 0;
+        // Skip Thread.getStackTrace and the recorder frames above the allocation
+        while (i < trace.length && isAgentFrame(trace[i])){
+            i++;
+        }
+        for (; i < trace.length && count < kept.length; i++){
+            if (!skip.test(trace[i].getClassName())){
+                kept[count++] = trace[i];
+            }
+        }
+        return trimmed(kept, count);
+    }
+
+    private static StackTraceElement[] captureLazily(final int maxDepth, final Predicate<String> skip) throws Throwable {
+        final Throwable here = new Throwable();
+        final int frames = (int) depth.invokeExact(here);
+        final StackTraceElement[] kept = new StackTraceElement[bound(maxDepth, frames)];
+        int count = 0;
+        boolean agent = true;
+        for (int i = 0; i < frames && count < kept.length; i++){
+            final StackTraceElement frame = (StackTraceElement) element.invokeExact(here, i);
+            if (agent && isAgentFrame(frame)){
+                continue;
+            }
+            agent = false;
+            if (!skip.test(frame.getClassName())){
+                kept[count++] = frame;
+            }
+        }
+        return trimmed(kept, count);
+    }
+
+    private static int bound(final int maxDepth, final int frames){
+        return maxDepth > 0 ? Math.min(maxDepth, frames) : frames;
+    }
+
+    private static StackTraceElement[] trimmed(final StackTraceElement[] kept, final int count){
+        return count == kept.length ? kept : Arrays.copyOf(kept, count);
+    }
+
+    private static boolean isAgentFrame(final StackTraceElement frame){
+        final String className = frame.getClassName();
+        return className.startsWith(AGENT_PACKAGE) ||
+                (className.equals("java.lang.Thread") && "getStackTrace".equals(frame.getMethodName()));
+    }
+}
@@ -0,0 +1,142 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events from the allocating threads to a single printer thread. Every producing thread gets its
+ * own {@link RingBuffer} the first time it offers an event, so producers never contend with each other
+ * or take a lock. The printer drains all of the buffers in batches and drops the buffers of threads
+ * that have died once they're empty.
+ *
+ * When a thread's buffer is full new events from that thread are dropped and counted; see
+ * {@link #dropped()}.
+ *
+ * An idle printer parks in {@link #awaitEvents} and the next offer wakes it. Producers only pay for a
+ * volatile read unless the printer is parked.
+ */
+public class ThreadRingBuffers<E> {
+
+    private final int capacity;
+    private final CopyOnWriteArrayList<RingBuffer<E>> buffers = new CopyOnWriteArrayList<>();
+
+    // Dropped counts of buffers that have already been removed
+    private volatile long retiredDropped = 0;
+
+    // The consumer while it's parked in awaitEvents()
+    private final AtomicReference<Thread> waiter = new AtomicReference<>();
+
+    private final ThreadLocal<RingBuffer<E>> localBuffer = new ThreadLocal<RingBuffer<E>>() {
+        @Override
+        protected RingBuffer<E> initialValue() {
+            final RingBuffer<E> buffer = new RingBuffer<>(capacity, Thread.currentThread());
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    /**
+     * @param capacity the number of events each thread can have waiting for the printer
+     */
+    public ThreadRingBuffers(final int capacity){
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds an event to the calling thread's buffer.
+     *
+     * @param event the event to hand to the printer
+     * @return false if the calling thread's buffer was full and the event was dropped
+     */
+    public boolean offer(final E event){
+        final boolean added = localBuffer.get().offer(event);
+        if (waiter.get() != null){
+            final Thread consumer = waiter.getAndSet(null);
+            if (consumer != null){
+                LockSupport.unpark(consumer);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Parks the consuming thread until an event is offered or the timeout passes. Returns at once if there
+     * are events waiting. The buffers publish events with ordered rather than volatile writes, so in a
+     * narrow race a wakeup can be missed; the timeout bounds how late the consumer is then.
+     *
+     * @param timeout the longest to park for
+     * @param unit the unit of timeout
+     */
+    public void awaitEvents(final long timeout, final TimeUnit unit){
+        final Thread consumer = Thread.currentThread();
+        waiter.set(consumer);
+        if (isEmpty()){
+            LockSupport.parkNanos(this, unit.toNanos(timeout));
+        }
+        waiter.compareAndSet(consumer, null);
+    }
+
+    /**
+     * @return true if no thread has events waiting
+     */
+    public boolean isEmpty(){
+        for (RingBuffer<E> buffer : buffers){
+            if (!buffer.isEmpty()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves up to max events from the threads' buffers into the collection. Must only be called from
+     * the single consuming thread.
+     *
+     * @param collection where to put the events
+     * @param max the maximum number of events to move
+     * @return the number of events moved
+     */
+    public int drainTo(final Collection<? super E> collection, final int max){
+        int drained = 0;
+        for (RingBuffer<E> buffer : buffers){
+            if (drained < max){
+                drained += buffer.drainTo(collection, max - drained);
+            }
+            if (!buffer.owner().isAlive() && buffer.isEmpty()){
+                retire(buffer);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Discards every event waiting in the threads' buffers. Must only be called from the consuming thread.
+     */
+    public void clear(){
+        for (RingBuffer<E> buffer : buffers){
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Get the number of events dropped because a thread's buffer was full.
+     *
+     * @return the total number of events dropped so far
+     */
+    public long dropped(){
+        long dropped = retiredDropped;
+        for (RingBuffer<E> buffer : buffers){
+            dropped += buffer.dropped();
+        }
+        return dropped;
+    }
+
+    private void retire(final RingBuffer<E> buffer){
+        if (buffers.remove(buffer)){
+            retiredDropped += buffer.dropped();
+        }
+    }
+}
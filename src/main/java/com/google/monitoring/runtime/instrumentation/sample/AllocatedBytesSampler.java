@@ -0,0 +1,87 @@
+package com.google.monitoring.runtime.instrumentation.sample;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.ObjectSizeMeasurement;
+
+import java.lang.instrument.Instrumentation;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples by bytes allocated instead of by allocation count. Each thread counts down the bytes it
+ * allocates and takes a sample when the countdown runs out; the next countdown is drawn from an
+ * exponential distribution with the desired mean, so samples form a Poisson process over the bytes
+ * allocated. A large allocation is proportionally more likely to be sampled than a small one, and
+ * weigh() turns each sample into an unbiased estimate of the bytes it stands for.
+ */
+public class AllocatedBytesSampler implements SampleStrategy {
+
+    // Size used for allocations we can't measure
+    private static final long UNKNOWN_SIZE = 16;
+
+    private volatile boolean started = false;
+    private final long startTime;
+    private final double meanSampleBytes;
+
+    public AllocatedBytesSampler(final long start, final long meanSampleBytes){
+        this.startTime = start;
+        this.meanSampleBytes = Math.max(1, meanSampleBytes);
+    }
+
+    @Override
+    public boolean canSample(final SampleState state) {
+        return canSample(state, -1, null);
+    }
+
+    @Override
+    public boolean canSample(final SampleState state, final int count, final Object newObj) {
+        if (state.owner != this){
+            if (!hasStarted()){
+                return false;
+            }
+            state.owner = this;
+            state.threshold = nextInterval();
+            state.countdown = state.threshold;
+        }
+
+        state.countdown -= sizeOf(count, newObj);
+        if (state.countdown > 0){
+            return false;
+        }
+        state.threshold = nextInterval();
+        state.countdown = state.threshold;
+        return true;
+    }
+
+    @Override
+    public long weigh(final long size) {
+        // An allocation of size bytes is sampled with probability 1 - e^(-size/mean)
+        final double probability = -Math.expm1(-size / meanSampleBytes);
+        if (probability <= 0){
+            return (long) meanSampleBytes;
+        }
+        return Math.round(size / probability);
+    }
+
+    // Called for every allocation, so nothing here may call into the JVM once a class or array element
+    // type has been measured; see ObjectSizeMeasurement
+    long sizeOf(final int count, final Object newObj){
+        final Instrumentation instr = AllocationRecorder.getInstrumentation();
+        if (newObj == null || instr == null){
+            return UNKNOWN_SIZE;
+        }
+        return ObjectSizeMeasurement.getObjectSize(newObj, (count >= 0), instr);
+    }
+
+    private boolean hasStarted(){
+        if (!started && System.currentTimeMillis() > startTime){
+            started = true;
+        }
+        return started;
+    }
+
+    // Draw the bytes until the next sample from an exponential distribution
+    private long nextInterval(){
+        final double uniform = ThreadLocalRandom.current().nextDouble();
+        return Math.max(1, (long) (-Math.log1p(-uniform) * meanSampleBytes));
+    }
+}
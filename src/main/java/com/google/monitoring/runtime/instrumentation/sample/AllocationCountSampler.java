@@ -3,27 +3,14 @@ package com.google.monitoring.runtime.instrumentation.sample;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * A thread local allocation count sampling strategy. This strategy keeps thread local counts of
- * allocations and compares that the the thread local sample rate. If the sample rate is the same
- * as the count canSample() returns true, resets the local count, and calculates the next sampleRate.
+ * A thread local allocation count sampling strategy. This strategy keeps a thread local countdown of
+ * allocations in the thread's SampleState. When the countdown reaches zero canSample() returns true
+ * and a new countdown is started from the sample rate plus jitter.
  *
  * Created by jmaloney on 11/29/16.
  */
 public class AllocationCountSampler implements SampleStrategy {
 
-    private final ThreadLocal<Long> threadLocalSampleCnt = new ThreadLocal<Long>() {
-        @Override
-        protected Long initialValue() {
-            return 0L;
-        }
-    };
-    private final ThreadLocal<Long> threadLocalSampleRate = new ThreadLocal<Long>() {
-        @Override
-        protected Long initialValue() {
-            return -1L;
-        }
-    };
-
     private volatile boolean started = false;
     private final long startTime;
     private final long jitter;
@@ -36,23 +23,39 @@ public class AllocationCountSampler implements SampleStrategy {
     }
 
     @Override
-    public boolean canSample() {
-        final long currentSampleRate = threadLocalSampleRate.get();
-        final long currentSampleCnt = threadLocalSampleCnt.get() + 1;
+    public boolean canSample(final SampleState state) {
+        if (state.owner == this && --state.countdown > 0){
+            return false;
+        }
+        return nextSample(state);
+    }
+
+    // Slow path: either the countdown ran out, this thread hasn't used this sampler yet or
+    // sampling hasn't started.
+    private boolean nextSample(final SampleState state){
+        if (state.owner != this || state.countdown < 0){
+            state.owner = this;
+            if (!hasStarted()){
+                state.countdown = 0;
+                return false;
+            }
+        }
+        state.threshold = Math.max(1, desiredSampleRate + getJitter());
+        state.countdown = state.threshold;
+        return true;
+    }
 
-        if (currentSampleRate == -1 && !started && System.currentTimeMillis() > startTime){
+    private boolean hasStarted(){
+        if (!started && System.currentTimeMillis() > startTime){
             started = true;
-            threadLocalSampleCnt.set(0L);
-            threadLocalSampleRate.set(desiredSampleRate + getJitter());
-            return true;
-        } else if (currentSampleRate == currentSampleCnt){
-            threadLocalSampleCnt.set(0L);
-            threadLocalSampleRate.set(desiredSampleRate + getJitter());
-            return true;
-        } else {
-            threadLocalSampleCnt.set(currentSampleCnt);
-            return false;
         }
+        return started;
+    }
+
+    @Override
+    public long weigh(final long size) {
+        // Every sample stands in for desiredSampleRate allocations on average
+        return size * desiredSampleRate;
     }
 
     /**
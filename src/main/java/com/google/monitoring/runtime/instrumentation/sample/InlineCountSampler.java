@@ -0,0 +1,54 @@
+package com.google.monitoring.runtime.instrumentation.sample;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An allocation count sampling strategy for classes instrumented with inline countdowns. The rewritten
+ * bytecode decrements a per-thread countdown and only calls into the agent once it runs out, so every
+ * allocation that reaches canSample() is a sample and the rate is applied through siteCountdown().
+ */
+public class InlineCountSampler implements SampleStrategy {
+
+    private volatile boolean started = false;
+    private final long startTime;
+    private final long jitter;
+    private final long desiredSampleRate;
+
+    public InlineCountSampler(final long start, final long desiredSampleRate, final long jitter){
+        this.startTime = start;
+        this.jitter = jitter;
+        this.desiredSampleRate = desiredSampleRate;
+    }
+
+    @Override
+    public boolean canSample(final SampleState state) {
+        if (!started && System.currentTimeMillis() > startTime){
+            started = true;
+        }
+        return started;
+    }
+
+    @Override
+    public int siteCountdown() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, desiredSampleRate + getJitter()));
+    }
+
+    @Override
+    public long weigh(final long size) {
+        // Every sample stands in for desiredSampleRate allocations on average
+        return size * desiredSampleRate;
+    }
+
+    /**
+     * Based on the amount of jitter set select a random value between [-1 * jitter, jitter)
+     *
+     * @return
+     */
+    private long getJitter(){
+        if (jitter == 0){
+            return 0;
+        } else {
+            return ThreadLocalRandom.current().nextLong(-1 * jitter, jitter);
+        }
+    }
+}
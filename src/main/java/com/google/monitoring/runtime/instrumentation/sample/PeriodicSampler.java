@@ -22,7 +22,7 @@ public class PeriodicSampler implements SampleStrategy {
     }
 
     @Override
-    public boolean canSample() {
+    public boolean canSample(final SampleState state) {
         final long now = System.currentTimeMillis();
         final long nextTime = nextSampleTime.get();
         if (now > nextTime){
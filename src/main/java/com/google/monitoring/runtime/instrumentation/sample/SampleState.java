@@ -0,0 +1,98 @@
+package com.google.monitoring.runtime.instrumentation.sample;
+
+/**
+ * Per-thread sampling state. Everything the allocation hook needs to decide whether to sample lives
+ * in primitive fields of a single object so that the common not-sampled path does one ThreadLocal
+ * lookup and allocates nothing.
+ *
+ * The countdown fields belong to whichever SampleStrategy last used this state (see owner); a
+ * strategy that finds a different owner must reset them before use.
+ */
+public final class SampleState {
+
+    private static final ThreadLocal<SampleState> current = new ThreadLocal<SampleState>() {
+        @Override
+        protected SampleState initialValue() {
+            return new SampleState();
+        }
+    };
+
+    // Re-entrancy flag, set while the recorder is running on this thread
+    private boolean recording = false;
+
+    // The strategy the countdown below belongs to
+    SampleStrategy owner = null;
+
+    // Events left until the next sample; 0 or less before the owner has started sampling
+    long countdown = 0;
+
+    // The interval the current countdown started from
+    long threshold = 0;
+
+    /**
+     * Allocations left until an inline sampling site calls the recorder again. Instrumented code
+     * decrements it directly, see AllocationMethodAdapter; it is per thread so that hot sites don't
+     * write to memory other cores are writing too.
+     */
+    public int siteCountdown = 0;
+
+    // Whether siteCountdown has been started from the sample strategy yet
+    private boolean siteCountdownStarted = false;
+
+    private SampleState(){
+    }
+
+    /**
+     * Get the sampling state of the calling thread.
+     *
+     * @return the calling thread's state
+     */
+    public static SampleState current(){
+        return current.get();
+    }
+
+    /**
+     * Marks the thread as recording an allocation.
+     *
+     * @return false if the thread was already recording, in which case the caller must not record
+     */
+    public boolean enter(){
+        if (recording){
+            return false;
+        }
+        recording = true;
+        return true;
+    }
+
+    /**
+     * Clears the flag set by a successful {@link #enter()}.
+     */
+    public void exit(){
+        recording = false;
+    }
+
+    /**
+     * Restarts the inline sampling countdown once it has run out.
+     *
+     * @param next the allocations until the next sample, from {@link SampleStrategy#siteCountdown()}
+     * @return whether the allocation that ran the countdown out is to be sampled; a thread's countdown
+     * starts at zero, so the first time it runs out only starts it, unless every allocation is sampled
+     */
+    public boolean restartSiteCountdown(final int next){
+        siteCountdown = next;
+        if (!siteCountdownStarted){
+            siteCountdownStarted = true;
+            return next <= 1;
+        }
+        return true;
+    }
+
+    /**
+     * Get the interval the current countdown was started from.
+     *
+     * @return the number of events between the last sample and the next one
+     */
+    public long threshold(){
+        return threshold;
+    }
+}
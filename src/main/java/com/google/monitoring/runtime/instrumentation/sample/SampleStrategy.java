@@ -4,5 +4,58 @@ package com.google.monitoring.runtime.instrumentation.sample;
  * Created by jmaloney on 11/29/16.
  */
 public interface SampleStrategy {
-    boolean canSample();
+
+    /**
+     * Decide whether the current allocation should be sampled using the calling thread's state.
+     *
+     * @return true if the allocation should be recorded
+     */
+    default boolean canSample() {
+        return canSample(SampleState.current());
+    }
+
+    /**
+     * Decide whether the current allocation should be sampled. This is called for every
+     * instrumented allocation so implementations must not allocate when returning false.
+     *
+     * @param state the calling thread's sampling state
+     * @return true if the allocation should be recorded
+     */
+    boolean canSample(SampleState state);
+
+    /**
+     * Size-aware variant of {@link #canSample(SampleState)}, called with what the allocation hook knows
+     * about the allocation. Strategies that don't look at the allocation ignore the extra arguments.
+     *
+     * @param state the calling thread's sampling state
+     * @param count the array length, or -1 if newObj isn't an array
+     * @param newObj the object just allocated
+     * @return true if the allocation should be recorded
+     */
+    default boolean canSample(SampleState state, int count, Object newObj) {
+        return canSample(state);
+    }
+
+    /**
+     * Get the number of bytes a sampled allocation stands for. Recorders write this instead of the
+     * size of the sampled object so that totals estimate everything allocated, not just what was
+     * sampled.
+     *
+     * @param size the size of the sampled allocation in bytes
+     * @return the unbiased estimate of the bytes allocated this sample represents
+     */
+    default long weigh(long size) {
+        return size;
+    }
+
+    /**
+     * The number of allocations an inline countdown site skips before calling into the agent again.
+     * Strategies that make their own decision in canSample() leave this at 1 so every allocation
+     * reaches them.
+     *
+     * @return the next countdown for an instrumented allocation site, at least 1
+     */
+    default int siteCountdown() {
+        return 1;
+    }
 }
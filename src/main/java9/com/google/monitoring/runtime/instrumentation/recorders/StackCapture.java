@@ -0,0 +1,48 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import java.util.function.Predicate;
+
+/**
+ * Captures the allocating thread's stack for the recorders, leaving out the agent's own frames at the
+ * top of the stack and any frames the skip list matches, and keeping at most maxDepth frames below them.
+ *
+ * This is the Java 9+ version. StackWalker materializes frames lazily, so the agent and skipped frames are
+ * passed over by class name and frames past maxDepth are never turned into StackTraceElements.
+ */
+public final class StackCapture {
+    static final String AGENT_PACKAGE = "com.google.monitoring.runtime.instrumentation.";
+
+    private static final Predicate<String> NO_SKIP = className -> false;
+
+    private static final StackWalker walker = StackWalker.getInstance();
+
+    private StackCapture(){
+    }
+
+    /**
+     * Get the calling thread's stack, starting at the frame that performed the allocation.
+     *
+     * @param maxDepth the maximum number of frames to keep, or 0 or less to keep them all
+     * @return the frames, innermost first, like Thread.getStackTrace()
+     */
+    public static StackTraceElement[] capture(final int maxDepth){
+        return capture(maxDepth, NO_SKIP);
+    }
+
+    /**
+     * Get the calling thread's stack, starting at the frame that performed the allocation.
+     *
+     * @param maxDepth the maximum number of frames to keep, or 0 or less to keep them all
+     * @param skip the class names of frames to leave out, see FrameFilter
+     * @return the frames, innermost first, like Thread.getStackTrace()
+     */
+    public static StackTraceElement[] capture(final int maxDepth, final Predicate<String> skip){
+        final long limit = maxDepth > 0 ? maxDepth : Long.MAX_VALUE;
+        return walker.walk(frames -> frames
+                .dropWhile(frame -> frame.getClassName().startsWith(AGENT_PACKAGE))
+                .filter(frame -> !skip.test(frame.getClassName()))
+                .limit(limit)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toArray(StackTraceElement[]::new));
+    }
+}
@@ -0,0 +1,65 @@
+package com.google.monitoring.flame;
+
+import com.google.monitoring.runtime.instrumentation.events.AllocationEvent;
+import com.google.monitoring.runtime.instrumentation.events.BinaryEventFormatter;
+import com.google.monitoring.runtime.instrumentation.events.EventFormatter;
+import com.google.monitoring.runtime.instrumentation.events.EventParser;
+import com.google.monitoring.runtime.instrumentation.events.StackTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryEventReaderTest {
+
+    private static StackTraceElement frame(final String method){
+        return new StackTraceElement("com.example.Foo", method, "Foo.java", 1);
+    }
+
+    private static byte[] write() throws IOException {
+        final StackTable table = new StackTable();
+        final int ab = table.intern(new StackTraceElement[]{frame("b"), frame("a")});
+        final int ac = table.intern(new StackTraceElement[]{frame("c"), frame("a")});
+        final BinaryEventFormatter formatter = new BinaryEventFormatter(table, new EventFormatter(table,
+                EventParser.VerbosityLevel.METHOD_NAME, EventParser.OutputFormat.BINARY));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.writeHeader(out);
+        formatter.write(new AllocationEvent(24, ab, "int"), out);
+        formatter.writeMeta("dropped", 3, out);
+        formatter.write(new AllocationEvent(300, ac, "int"), out);
+        formatter.write(new AllocationEvent(1L << 40, ab, "long"), out);
+        return out.toByteArray();
+    }
+
+    private static List<String> read(final byte[] bytes) throws IOException {
+        final BinaryEventReader reader = new BinaryEventReader(new ByteArrayInputStream(bytes));
+        final List<String> lines = new ArrayList<>();
+        while (reader.next()){
+            lines.add(reader.line());
+        }
+        return lines;
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        final byte[] bytes = write();
+        Assert.assertTrue(BinaryEventReader.isBinary(bytes, bytes.length));
+        Assert.assertEquals(Arrays.asList("a;b;int 24", "#dropped 3", "a;c;int 300", "a;b;long " + (1L << 40)),
+                read(bytes));
+    }
+
+    @Test
+    public void truncatedAndPaddedTest() throws IOException {
+        final byte[] bytes = write();
+        Assert.assertEquals(Arrays.asList("a;b;int 24", "#dropped 3", "a;c;int 300"),
+                read(Arrays.copyOf(bytes, bytes.length - 2)));
+        // Zero padding after the last record, as left at the end of a preallocated file
+        Assert.assertEquals(4, read(Arrays.copyOf(bytes, bytes.length + 100)).size());
+    }
+}
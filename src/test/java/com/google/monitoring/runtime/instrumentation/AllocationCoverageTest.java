@@ -0,0 +1,184 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+import com.google.monitoring.runtime.instrumentation.adapters.EscapeAnalyzer;
+import com.google.monitoring.runtime.instrumentation.recorders.Recorder;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import com.google.monitoring.runtime.instrumentation.sample.InlineCountSampler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+public class AllocationCoverageTest {
+
+    private final List<String> recorded = new ArrayList<>();
+    private final List<AllocationSite> sites = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        AllocationInstrumenter.setCoverage(AllocationKind.DEFAULT_COVERAGE);
+        AllocationInstrumenter.setSkipSites(Collections.<String>emptySet());
+        AllocationInstrumenter.setEscapeTrainingFile(null);
+        AllocationInstrumenter.setInlineSampling(false);
+        EscapeAnalyzer.stopTraining();
+    }
+
+    @Test
+    public void onlyCoveredKindsAreRecordedTest() throws ReflectiveOperationException {
+        recordEverything();
+
+        for (AllocationKind covered : AllocationKind.values()) {
+            AllocationInstrumenter.setCoverage(EnumSet.of(covered));
+            final Function<AllocationKind, IntFunction<Object>> workload =
+                    new InstrumentingClassLoader(AllocationKindWorkload.class, true).newInstance();
+            for (AllocationKind kind : AllocationKind.values()) {
+                recorded.clear();
+                sites.clear();
+                workload.apply(kind).apply(3);
+                if (kind == covered) {
+                    Assert.assertEquals(kind.toString(), 1, recorded.size());
+                    Assert.assertEquals(kind.toString(), expected(kind), recorded.get(0));
+                    final AllocationSite site = sites.get(0);
+                    Assert.assertEquals("com/google/monitoring/runtime/instrumentation/AllocationKindWorkload", site.getClassName());
+                    Assert.assertTrue(site.getMethodName(), site.getMethodName().startsWith("lambda$apply$"));
+                    Assert.assertTrue(site.getLine() > 0);
+                    if (kind == AllocationKind.REFLECTION || kind == AllocationKind.REFLECTIVE_NEW) {
+                        Assert.assertNull(site.getTypeName());
+                    } else {
+                        Assert.assertTrue(site.toString(), expected(kind).endsWith(" " + site.getTypeName()));
+                    }
+                } else {
+                    Assert.assertEquals(kind + " with " + covered + " covered", 0, recorded.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void skippedSitesAreLeftAloneTest() throws ReflectiveOperationException {
+        recordEverything();
+        for (AllocationKind kind : EnumSet.of(AllocationKind.NEW, AllocationKind.INT_ARRAY, AllocationKind.OBJECT_ARRAY,
+                AllocationKind.MULTI_ARRAY)) {
+            AllocationInstrumenter.setSkipSites(Collections.singleton(siteOf(kind).getKey()));
+            final Function<AllocationKind, IntFunction<Object>> workload =
+                    new InstrumentingClassLoader(AllocationKindWorkload.class, true).newInstance();
+            recorded.clear();
+            workload.apply(kind).apply(3);
+            Assert.assertEquals(kind.toString(), 0, recorded.size());
+            AllocationInstrumenter.setSkipSites(Collections.<String>emptySet());
+        }
+    }
+
+    @Test
+    public void sitesOnOneLineAreToldApartTest() throws ReflectiveOperationException {
+        recordEverything();
+        AllocationInstrumenter.setCoverage(EnumSet.of(AllocationKind.INT_ARRAY));
+        final IntFunction<Object> intsOnly = new InstrumentingClassLoader(SameLineWorkload.class, true).newInstance();
+        intsOnly.apply(3);
+        Assert.assertEquals(2, sites.size());
+        final AllocationSite first = sites.get(0);
+        final AllocationSite second = sites.get(1);
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(first.getLine(), second.getLine());
+        Assert.assertEquals("(I)Ljava/lang/Object;", second.getMethodDesc());
+        // The arrays of other kinds before them count, though they aren't covered
+        Assert.assertEquals(2, first.getOrdinal());
+        Assert.assertEquals(3, second.getOrdinal());
+
+        // A skip list made under one coverage leaves the same site alone under another
+        AllocationInstrumenter.setCoverage(EnumSet.allOf(AllocationKind.class));
+        AllocationInstrumenter.setSkipSites(Collections.singleton(second.getKey()));
+        recorded.clear();
+        sites.clear();
+        final IntFunction<Object> everything = new InstrumentingClassLoader(SameLineWorkload.class, true).newInstance();
+        everything.apply(3);
+        Assert.assertEquals(3, recorded.size());
+        Assert.assertTrue(sites.contains(first));
+        Assert.assertFalse(sites.contains(second));
+    }
+
+    @Test
+    public void escapeTrainingMeasuresSitesTest() throws ReflectiveOperationException {
+        recordEverything();
+        final AllocationSite site = siteOf(AllocationKind.NEW);
+        EscapeAnalyzer.train(1);
+        AllocationInstrumenter.setEscapeTrainingFile("unused");
+        final Function<AllocationKind, IntFunction<Object>> workload =
+                new InstrumentingClassLoader(AllocationKindWorkload.class, true).newInstance();
+        recorded.clear();
+        final long measured = EscapeAnalyzer.measured(site.getId());
+        Assert.assertTrue(workload.apply(AllocationKind.NEW).apply(3) instanceof StringBuilder);
+        // Measured under the id the recorder's instrumentation gave the site, so the skip list matches it
+        Assert.assertEquals(measured + 1, EscapeAnalyzer.measured(site.getId()));
+        Assert.assertEquals(0, recorded.size());
+    }
+
+    @Test
+    public void inlineCountdownIsPerThreadTest() throws Exception {
+        recordEverything();
+        AllocationRecorder.setSampleStrategy(new InlineCountSampler(0, 10, 0));
+        AllocationInstrumenter.setInlineSampling(true);
+        final IntFunction<Object> workload = new InstrumentingClassLoader(IntArrayWorkload.class, true).newInstance();
+        for (int i = 0; i < 2; i++) {
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    workload.apply(3);
+                }
+            });
+            thread.start();
+            thread.join();
+            // A thread's first allocation starts its countdown, so allocations 11, 21 ... 91 are sampled
+            Assert.assertEquals(9 * (i + 1), recorded.size());
+        }
+    }
+
+    private void recordEverything() {
+        AllocationRecorder.setSampleStrategy(new AllocationCountSampler(0, 1, 0));
+        AllocationRecorder.setRecorder(new Recorder() {
+            @Override
+            public void record(final int count, final String desc, final Object newObj) {
+                recorded.add(count + " " + desc);
+            }
+
+            @Override
+            public void record(final int count, final String desc, final Object newObj, final int site) {
+                record(count, desc, newObj);
+                sites.add(AllocationSites.get(site));
+            }
+        });
+    }
+
+    // Loads the workload with only kind covered and returns the site that allocates it
+    private AllocationSite siteOf(final AllocationKind kind) throws ReflectiveOperationException {
+        AllocationInstrumenter.setCoverage(EnumSet.of(kind));
+        final Function<AllocationKind, IntFunction<Object>> workload =
+                new InstrumentingClassLoader(AllocationKindWorkload.class, true).newInstance();
+        sites.clear();
+        workload.apply(kind).apply(3);
+        return sites.get(0);
+    }
+
+    private static String expected(final AllocationKind kind) {
+        switch (kind) {
+            case OBJECT_ARRAY:
+            case REFLECTION:
+                return "3 java/lang/String";
+            case NEW:
+            case REFLECTIVE_NEW:
+                return "-1 java/lang/StringBuilder";
+            case MULTI_ARRAY:
+                return "6 [[I";
+            case CLONE:
+                return "4 long";
+            default:
+                return "3 " + kind.propertyName();
+        }
+    }
+}
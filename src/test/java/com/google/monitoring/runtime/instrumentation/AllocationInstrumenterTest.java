@@ -0,0 +1,65 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.adapters.InstrumentationOptions;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+public class AllocationInstrumenterTest {
+    // The line of the generated classes' allocation
+    private static final int LINE = 7;
+
+    @Test
+    public void classWithoutSitesIsLeftAloneTest() {
+        final byte[] plain = generate("gen/Plain", false);
+        final ClassLoader loader = getClass().getClassLoader();
+        Assert.assertSame(plain, AllocationInstrumenter.instrument(plain, loader));
+        Assert.assertNull(new AllocationInstrumenter().transform(loader, "gen/Plain", null, null, plain));
+
+        final byte[] allocating = generate("gen/Allocating", true);
+        final byte[] instrumented = new AllocationInstrumenter().transform(loader, "gen/Allocating", null, null, allocating);
+        Assert.assertNotNull(instrumented);
+        Assert.assertNotSame(allocating, instrumented);
+    }
+
+    @Test
+    public void classWithOnlySkippedSitesIsLeftAloneTest() {
+        final byte[] allocating = generate("gen/Skipped", true);
+        final ClassLoader loader = getClass().getClassLoader();
+        final InstrumentationOptions recording = InstrumentationOptions.recordingWith("gen/Recorder", "record");
+        final String key = AllocationSite.key("gen/Skipped", "run", "()Ljava/lang/Object;", 0, LINE, "int");
+        Assert.assertSame(allocating, AllocationInstrumenter.instrument(allocating, loader,
+                recording.withSkipSites(Collections.singleton(key)), new ArrayList<AllocationSite>()));
+
+        final String otherLine = AllocationSite.key("gen/Skipped", "run", "()Ljava/lang/Object;", 0, LINE + 1, "int");
+        Assert.assertNotSame(allocating, AllocationInstrumenter.instrument(allocating, loader,
+                recording.withSkipSites(Collections.singleton(otherLine)), new ArrayList<AllocationSite>()));
+    }
+
+    private static byte[] generate(final String name, final boolean allocates) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        final Label start = new Label();
+        mv.visitLabel(start);
+        mv.visitLineNumber(LINE, start);
+        if (allocates) {
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+        } else {
+            mv.visitLdcInsn("constant");
+        }
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
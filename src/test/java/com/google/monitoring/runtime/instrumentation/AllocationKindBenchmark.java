@@ -0,0 +1,71 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+import com.google.monitoring.runtime.instrumentation.recorders.Recorder;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The overhead instrumenting each kind of allocation adds to it, when the allocation isn't sampled.
+ * Compare each kind with covered=false, where the workload is loaded the same way but the kind isn't in
+ * the coverage:
+ *
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="AllocationKindBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationKindBenchmark {
+
+    @Param({"boolean", "char", "float", "double", "byte", "short", "int", "long",
+            "objectArray", "new", "multiArray", "clone", "reflection", "reflectiveNew"})
+    public String kind;
+
+    @Param({"false", "true"})
+    public boolean covered;
+
+    private IntFunction<Object> workload;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws ReflectiveOperationException {
+        final AllocationKind allocationKind = AllocationKind.parse(kind).iterator().next();
+        AllocationInstrumenter.setCoverage(covered
+                ? EnumSet.of(allocationKind)
+                : EnumSet.noneOf(AllocationKind.class));
+        // Start in the past with a rate high enough that nothing past the first call gets sampled
+        AllocationRecorder.setSampleStrategy(new AllocationCountSampler(0, Long.MAX_VALUE / 2, 0));
+        AllocationRecorder.setRecorder(new Recorder() {
+            @Override
+            public void record(final int count, final String desc, final Object newObj) {
+                blackhole.consume(newObj);
+            }
+        });
+        final Function<AllocationKind, IntFunction<Object>> kinds =
+                new InstrumentingClassLoader(AllocationKindWorkload.class, true).newInstance();
+        workload = kinds.apply(allocationKind);
+    }
+
+    @Benchmark
+    public Object allocate(){
+        return workload.apply(4);
+    }
+}
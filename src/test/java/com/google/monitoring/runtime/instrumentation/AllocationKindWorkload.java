@@ -0,0 +1,59 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+
+import java.lang.reflect.Array;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * An allocation of each kind for the coverage tests and benchmarks; loaded through
+ * {@link InstrumentingClassLoader}. The lambdas' bodies are methods of this class, so they're instrumented
+ * with it.
+ */
+public class AllocationKindWorkload implements Function<AllocationKind, IntFunction<Object>> {
+    private final long[] source = {1, 2, 3, 4};
+
+    @Override
+    public IntFunction<Object> apply(final AllocationKind kind) {
+        // By name: an enum switch would need a package-private class from the other loader
+        switch (kind.propertyName()) {
+            case "boolean":
+                return length -> new boolean[length];
+            case "char":
+                return length -> new char[length];
+            case "float":
+                return length -> new float[length];
+            case "double":
+                return length -> new double[length];
+            case "byte":
+                return length -> new byte[length];
+            case "short":
+                return length -> new short[length];
+            case "int":
+                return length -> new int[length];
+            case "long":
+                return length -> new long[length];
+            case "objectArray":
+                return length -> new String[length];
+            case "new":
+                return length -> new StringBuilder(length);
+            case "multiArray":
+                return length -> new int[2][length];
+            case "clone":
+                return length -> source.clone();
+            case "reflection":
+                return length -> Array.newInstance(String.class, length);
+            case "reflectiveNew":
+                return length -> {
+                    try {
+                        return StringBuilder.class.newInstance();
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(kind.toString());
+        }
+    }
+}
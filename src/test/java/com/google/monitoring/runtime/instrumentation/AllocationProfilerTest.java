@@ -0,0 +1,162 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.sample.SampleStrategy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+public class AllocationProfilerTest {
+
+    private File directory;
+    private AllocationProfiler profiler;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("profiler").toFile();
+        final Properties properties = new Properties();
+        properties.setProperty(InstrumentationProperties.OUTPUT_PATH_PROPERTY, new File(directory, "out").getPath());
+        properties.setProperty(InstrumentationProperties.SAMPLE_RATE_PROPERTY, "100");
+        properties.setProperty(InstrumentationProperties.FLAG_FILE_PROPERTY, "");
+        profiler = new AllocationProfiler();
+        profiler.configure(new InstrumentationPropertiesImpl(properties), 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final Thread printer = (Thread) profiler.getPrinter();
+        profiler.finish();
+        Assert.assertFalse(printer.isAlive());
+        AllocationRecorder.setEnabled(true);
+        for (File file : directory.listFiles()){
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void startStopTest(){
+        profiler.stop();
+        Assert.assertFalse(profiler.isEnabled());
+        Assert.assertFalse(AllocationRecorder.isEnabled());
+        profiler.start();
+        Assert.assertTrue(AllocationRecorder.isEnabled());
+    }
+
+    @Test
+    public void collapsedOutputOnlyHoldsSnapshotsTest() throws Exception {
+        profiler.finish();
+        final Properties properties = new Properties();
+        properties.setProperty(InstrumentationProperties.OUTPUT_PATH_PROPERTY, new File(directory, "collapsed").getPath());
+        properties.setProperty(InstrumentationProperties.OUTPUT_FORMAT_PROPERTY, "collapsed");
+        properties.setProperty(InstrumentationProperties.MMAP_OUTPUT_PROPERTY, "true");
+        properties.setProperty(InstrumentationProperties.FLAG_FILE_PROPERTY, "");
+        profiler = new AllocationProfiler();
+        profiler.configure(new InstrumentationPropertiesImpl(properties), 0);
+        // Nothing is written to the output path until the first snapshot
+        Assert.assertEquals(0, directory.listFiles((dir, name) -> name.startsWith("collapsed")).length);
+        profiler.close();
+        final File[] snapshots = directory.listFiles((dir, name) -> name.startsWith("collapsed"));
+        Assert.assertEquals(1, snapshots.length);
+        // No zero-filled mapped segment, only the totals
+        Assert.assertTrue(snapshots[0].length() < 1024);
+    }
+
+    @Test
+    public void flagFileGatesFlameRecorderTest() throws Exception {
+        final File flag = new File(directory, "flag");
+        profiler.finish();
+        final Properties properties = new Properties();
+        properties.setProperty(InstrumentationProperties.OUTPUT_PATH_PROPERTY, new File(directory, "flame").getPath());
+        properties.setProperty(InstrumentationProperties.FLAG_FILE_PROPERTY, flag.getPath());
+        properties.setProperty(InstrumentationProperties.FLAG_REFRESH_MS_PROPERTY, "10");
+        profiler = new AllocationProfiler();
+        profiler.configure(new InstrumentationPropertiesImpl(properties), 0);
+        Assert.assertFalse(AllocationRecorder.isEnabled());
+
+        Assert.assertTrue(flag.createNewFile());
+        awaitEnabled(true);
+        // A stop holds while the file is there, and the file doesn't override it
+        profiler.stop();
+        Thread.sleep(50);
+        Assert.assertFalse(AllocationRecorder.isEnabled());
+        profiler.start();
+        Assert.assertTrue(AllocationRecorder.isEnabled());
+
+        Assert.assertTrue(flag.delete());
+        awaitEnabled(false);
+        // Other recorders aren't gated
+        profiler.setRecorder("lifetime");
+        Assert.assertTrue(AllocationRecorder.isEnabled());
+    }
+
+    private static void awaitEnabled(final boolean enabled) throws InterruptedException {
+        for (int i = 0; i < 500 && AllocationRecorder.isEnabled() != enabled; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(enabled, AllocationRecorder.isEnabled());
+    }
+
+    @Test
+    public void sampleRateReplacesStrategyTest(){
+        final SampleStrategy before = AllocationRecorder.getSampleStrategy();
+        profiler.setSampleRate(5);
+        Assert.assertEquals(5, profiler.getSampleRate());
+        Assert.assertNotSame(before, AllocationRecorder.getSampleStrategy());
+        Assert.assertEquals(5 * 8, AllocationRecorder.getSampleStrategy().weigh(8));
+    }
+
+    @Test
+    public void sampleRateKeepsStartDelayTest() throws Exception {
+        profiler.finish();
+        final Properties properties = new Properties();
+        properties.setProperty(InstrumentationProperties.OUTPUT_PATH_PROPERTY, new File(directory, "out").getPath());
+        properties.setProperty(InstrumentationProperties.SAMPLE_RATE_PROPERTY, "1");
+        properties.setProperty(InstrumentationProperties.FLAG_FILE_PROPERTY, "");
+        profiler = new AllocationProfiler();
+        profiler.configure(new InstrumentationPropertiesImpl(properties), System.currentTimeMillis() + 60_000);
+        profiler.setSampleRate(2);
+        Assert.assertFalse(AllocationRecorder.getSampleStrategy().canSample());
+    }
+
+    @Test
+    public void invalidValuesAreRejectedTest() throws Exception {
+        try {
+            profiler.setSampleRate(0);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            profiler.setSampleStrategy("inline");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            profiler.setVerbosity("everything");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals(100, profiler.getSampleRate());
+        Assert.assertEquals("allocationCount", profiler.getSampleStrategy());
+        Assert.assertEquals("methodClassName", profiler.getVerbosity());
+    }
+
+    @Test
+    public void recorderSwitchTest() throws Exception {
+        profiler.setRecorder("lifetime");
+        Assert.assertEquals("lifetime", profiler.getRecorder());
+        profiler.setVerbosity("methodName");
+        Assert.assertEquals("methodName", profiler.getVerbosity());
+        Assert.assertEquals("lifetime", profiler.getRecorder());
+        try {
+            profiler.setRecorder("unknown");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals("lifetime", profiler.getRecorder());
+    }
+}
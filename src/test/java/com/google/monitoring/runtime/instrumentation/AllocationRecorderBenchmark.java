@@ -0,0 +1,58 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.recorders.Recorder;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the hook the instrumented code calls on every allocation when the allocation is
+ * not sampled. Run with -prof gc to check the not-sampled path allocates nothing:
+ *
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="AllocationRecorderBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationRecorderBenchmark {
+
+    private final Object newObj = new int[8];
+
+    @Setup
+    public void setup(final Blackhole blackhole){
+        // Start in the past with a rate high enough that nothing past the first call gets sampled
+        AllocationRecorder.setSampleStrategy(new AllocationCountSampler(0, Long.MAX_VALUE / 2, 0));
+        AllocationRecorder.setRecorder(new Recorder() {
+            @Override
+            public void record(final int count, final String desc, final Object newObj) {
+                blackhole.consume(newObj);
+            }
+        });
+    }
+
+    @Benchmark
+    public void notSampled(){
+        AllocationRecorder.recordAllocation(8, "int", newObj);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void notSampledThreads4(){
+        AllocationRecorder.recordAllocation(8, "int", newObj);
+    }
+}
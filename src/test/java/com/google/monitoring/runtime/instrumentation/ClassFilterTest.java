@@ -0,0 +1,55 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ClassFilterTest {
+
+    @Test
+    public void longestPrefixDecidesTest(){
+        final ClassFilter filter = new ClassFilter(
+                Arrays.asList("com.example.", "com/example/gen/Keep"),
+                Collections.singletonList("com.example.gen."),
+                false);
+        Assert.assertTrue(filter.accepts("com/example/Main"));
+        Assert.assertTrue(filter.accepts("com/example/sub/Main"));
+        Assert.assertFalse(filter.accepts("com/example/gen/Proxy1"));
+        Assert.assertTrue(filter.accepts("com/example/gen/Keep"));
+        Assert.assertTrue(filter.accepts("com/example/gen/KeepAlso"));
+        Assert.assertFalse(filter.accepts("com/examples/Main"));
+        Assert.assertFalse(filter.accepts("java/lang/String"));
+        Assert.assertFalse(filter.accepts(""));
+    }
+
+    @Test
+    public void excludeWinsTiesTest(){
+        final ClassFilter filter = new ClassFilter(
+                Collections.singletonList("org.acme."),
+                Collections.singletonList("org.acme."),
+                true);
+        Assert.assertFalse(filter.accepts("org/acme/Main"));
+        Assert.assertTrue(filter.accepts("org/other/Main"));
+    }
+
+    @Test
+    public void builtInExclusionsTest(){
+        final ClassFilter everything = AllocationInstrumenter.createClassFilter("", "");
+        Assert.assertTrue(everything.accepts("java/lang/String"));
+        Assert.assertFalse(everything.accepts("java/lang/ThreadLocal"));
+        Assert.assertFalse(everything.accepts("java/lang/ThreadLocal$ThreadLocalMap"));
+        Assert.assertFalse(everything.accepts("ognl/Ognl"));
+        Assert.assertFalse(everything.accepts("com/google/monitoring/runtime/instrumentation/AllocationRecorder"));
+        Assert.assertFalse(everything.accepts("com/google/monitoring/runtime/instrumentation/asm/ClassReader"));
+        Assert.assertTrue(everything.accepts("com/google/monitoring/runtime/instrumentation/Test"));
+
+        final ClassFilter owned = AllocationInstrumenter.createClassFilter(" com.example. , java.", "com.example.internal.");
+        Assert.assertTrue(owned.accepts("com/example/Main"));
+        Assert.assertFalse(owned.accepts("com/example/internal/Cache"));
+        Assert.assertTrue(owned.accepts("java/util/HashMap"));
+        Assert.assertFalse(owned.accepts("java/lang/ThreadLocal"));
+        Assert.assertFalse(owned.accepts("org/slf4j/Logger"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.recorders.Recorder;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import com.google.monitoring.runtime.instrumentation.sample.InlineCountSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Compares an allocation in uninstrumented code with the same allocation instrumented with a call to the
+ * recorder at every site and with an inline countdown in front of the call, at a 1 in 100000 sample rate.
+ * allocateFromFourThreads runs the same site on four threads at once, where a countdown shared between
+ * threads would bounce its cache line between cores.
+ *
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="InlineSamplingBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InlineSamplingBenchmark {
+
+    private static final long SAMPLE_RATE = 100_000;
+
+    @Param({"none", "call", "inline"})
+    public String instrumentation;
+
+    private IntFunction<Object> workload;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws ReflectiveOperationException {
+        final boolean inline = instrumentation.equals("inline");
+        AllocationInstrumenter.setInlineSampling(inline);
+        AllocationRecorder.setSampleStrategy(inline
+                ? new InlineCountSampler(0, SAMPLE_RATE, 0)
+                : new AllocationCountSampler(0, SAMPLE_RATE, 0));
+        AllocationRecorder.setRecorder(new Recorder() {
+            @Override
+            public void record(final int count, final String desc, final Object newObj) {
+                blackhole.consume(newObj);
+            }
+        });
+        workload = new InstrumentingClassLoader(IntArrayWorkload.class, !instrumentation.equals("none"))
+                .newInstance();
+    }
+
+    @Benchmark
+    public Object allocate(){
+        return workload.apply(4);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object allocateFromFourThreads(){
+        return workload.apply(4);
+    }
+}
@@ -0,0 +1,165 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationKind;
+import com.google.monitoring.runtime.instrumentation.adapters.AllocationMethodAdapter;
+import com.google.monitoring.runtime.instrumentation.adapters.InstrumentationOptions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.stream.Stream;
+
+public class InstrumentedClassCacheTest {
+    private static final InstrumentationOptions OPTIONS = InstrumentationOptions.recordingWith("Recorder", "record");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("classcache").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void roundTripTest(){
+        final InstrumentedClassCache cache = new InstrumentedClassCache(directory.getPath(), OPTIONS);
+        final byte[] original = {1, 2, 3};
+        final byte[] instrumented = {4, 5, 6, 7};
+        final String key = cache.key(original);
+        Assert.assertNull(cache.get(key, original));
+
+        cache.put(key, original, instrumented, Collections.<AllocationSite>emptyList());
+        Assert.assertArrayEquals(instrumented, cache.get(key, original));
+        // Another JVM with the same agent and configuration finds it
+        final InstrumentedClassCache restarted = new InstrumentedClassCache(directory.getPath(), OPTIONS);
+        Assert.assertEquals(key, restarted.key(original));
+        Assert.assertArrayEquals(instrumented, restarted.get(key, original));
+    }
+
+    @Test
+    public void unchangedClassTest(){
+        final InstrumentedClassCache cache = new InstrumentedClassCache(directory.getPath(), OPTIONS);
+        final byte[] original = {1, 2, 3};
+        final String key = cache.key(original);
+        cache.put(key, original, original, Collections.<AllocationSite>emptyList());
+        final byte[] reloaded = {1, 2, 3};
+        Assert.assertSame(reloaded, cache.get(key, reloaded));
+    }
+
+    @Test
+    public void siteIdsTest(){
+        final InstrumentedClassCache cache = new InstrumentedClassCache(directory.getPath(), OPTIONS);
+        final AllocationSite site = AllocationSites.register("gen/Cached", "run", "()V", 0, 7, "int");
+        final byte[] original = {1, 2, 3};
+        final byte[] instrumented = recordingClass(site.getId());
+        final String key = cache.key(original);
+        cache.put(key, original, instrumented, Collections.singletonList(site));
+        // The site already has its id in this JVM
+        Assert.assertArrayEquals(instrumented, cache.get(key, original));
+
+        // A site whose cached id now belongs to another site gets a new id, which the class passes instead
+        final AllocationSite taken = new AllocationSite(site.getId(), "gen/Cached", "run", "()V", 1, 8, "int");
+        final byte[] other = {1, 2};
+        final String otherKey = cache.key(other);
+        cache.put(otherKey, other, instrumented, Collections.singletonList(taken));
+        final int moved = siteIdOf(cache.get(otherKey, other));
+        Assert.assertNotEquals(site.getId(), moved);
+        Assert.assertEquals(taken, AllocationSites.get(moved));
+        Assert.assertEquals(moved, siteIdOf(cache.get(otherKey, other)));
+
+        // A free id is claimed, and isn't handed out again
+        final AllocationSite free = new AllocationSite(site.getId() + 1000, "gen/Cached", "run", "()V", 2, 9, null);
+        final byte[] third = {1};
+        final String thirdKey = cache.key(third);
+        final byte[] freeInstrumented = recordingClass(free.getId());
+        cache.put(thirdKey, third, freeInstrumented, Collections.singletonList(free));
+        Assert.assertArrayEquals(freeInstrumented, cache.get(thirdKey, third));
+        Assert.assertEquals(free, AllocationSites.get(free.getId()));
+        Assert.assertTrue(AllocationSites.register("gen/Cached", "run", "()V", 3, 10, null).getId() > free.getId());
+    }
+
+    // A class as the recorder's instrumentation leaves it, passing site to the recorder
+    private static byte[] recordingClass(final int site) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "gen/Cached", null, "java/lang/Object", null);
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ICONST_3);
+        mv.visitLdcInsn("int");
+        mv.visitInsn(Opcodes.ICONST_3);
+        mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+        mv.visitLdcInsn(site);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, OPTIONS.getRecorderClass(), OPTIONS.getRecorderMethod(),
+                AllocationMethodAdapter.RECORDER_SITE_SIGNATURE, false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // The site id a class made by recordingClass passes to the recorder, the last int it pushes
+    private static int siteIdOf(final byte[] instrumented) {
+        final int[] site = new int[1];
+        new ClassReader(instrumented).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String desc,
+                                             final String signature, final String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitInsn(final int opcode) {
+                        if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+                            site[0] = opcode - Opcodes.ICONST_0;
+                        }
+                    }
+
+                    @Override
+                    public void visitIntInsn(final int opcode, final int operand) {
+                        if (opcode != Opcodes.NEWARRAY) {
+                            site[0] = operand;
+                        }
+                    }
+
+                    @Override
+                    public void visitLdcInsn(final Object cst) {
+                        if (cst instanceof Integer) {
+                            site[0] = (Integer) cst;
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return site[0];
+    }
+
+    @Test
+    public void configurationChangesKeyTest(){
+        final byte[] original = {1, 2, 3};
+        final String key = new InstrumentedClassCache(directory.getPath(), OPTIONS).key(original);
+        Assert.assertNotEquals(key, new InstrumentedClassCache(directory.getPath(), OPTIONS.withInlineSampling(true)).key(original));
+        Assert.assertNotEquals(key, new InstrumentedClassCache(directory.getPath(), InstrumentationOptions.recordingWith("Other", "record")).key(original));
+        Assert.assertNotEquals(key, new InstrumentedClassCache(directory.getPath(),
+                OPTIONS.withCoverage(EnumSet.allOf(AllocationKind.class))).key(original));
+        Assert.assertNotEquals(key, new InstrumentedClassCache(directory.getPath(),
+                OPTIONS.withSkipSites(Collections.singleton("gen/Cached.run()V#0:1 int"))).key(original));
+        Assert.assertNotEquals(key, new InstrumentedClassCache(directory.getPath(), OPTIONS).key(new byte[]{1, 2}));
+    }
+}
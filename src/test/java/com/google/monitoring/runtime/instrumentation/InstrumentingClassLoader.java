@@ -0,0 +1,69 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads a single class from the test classpath, passing its bytes through
+ * {@link AllocationInstrumenter#instrument(byte[], ClassLoader)} when asked to.
+ * Everything else is delegated to the parent.
+ */
+class InstrumentingClassLoader extends ClassLoader {
+    private final String className;
+    private final boolean instrument;
+
+    InstrumentingClassLoader(final Class<?> cls, final boolean instrument) {
+        super(cls.getClassLoader());
+        this.className = cls.getName();
+        this.instrument = instrument;
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> cls = findLoadedClass(name);
+            if (cls == null) {
+                byte[] bytes = readClass(name);
+                if (instrument) {
+                    bytes = AllocationInstrumenter.instrument(bytes, this);
+                }
+                cls = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
+        }
+    }
+
+    private byte[] readClass(final String name) throws ClassNotFoundException {
+        final InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+        if (in == null) {
+            throw new ClassNotFoundException(name);
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            in.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    /**
+     * Loads and instantiates the class with its no-arg constructor.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T newInstance() throws ReflectiveOperationException {
+        return (T) loadClass(className).newInstance();
+    }
+}
@@ -0,0 +1,13 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.function.IntFunction;
+
+/**
+ * Allocation workload for the benchmarks; loaded through {@link InstrumentingClassLoader}.
+ */
+public class IntArrayWorkload implements IntFunction<Object> {
+    @Override
+    public Object apply(final int length) {
+        return new int[length];
+    }
+}
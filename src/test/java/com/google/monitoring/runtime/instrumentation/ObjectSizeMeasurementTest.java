@@ -0,0 +1,40 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ObjectSizeMeasurementTest {
+
+    @Test
+    public void arraysAreSizedFromLengthTest() {
+        final AtomicInteger measured = new AtomicInteger();
+        final Instrumentation instr = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("getObjectSize")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    measured.incrementAndGet();
+                    return sizeOf(args[0]);
+                });
+
+        for (Object array : new Object[]{new byte[3], new byte[17], new long[5], new String[7], new int[0][0],
+                new char[1000], new String[2]}) {
+            Assert.assertEquals(array.getClass().getName(), sizeOf(array),
+                    ObjectSizeMeasurement.getObjectSize(array, true, instr));
+        }
+        // An empty array and a longer one were measured for each of byte, long, char and references
+        Assert.assertEquals(8, measured.get());
+    }
+
+    // A 16 byte array header followed by the elements, padded to 8 bytes
+    private static long sizeOf(final Object array) {
+        final Class<?> type = array.getClass().getComponentType();
+        final long element = type == byte.class ? 1 : type == char.class ? 2 : type == long.class ? 8 : 4;
+        return (16 + Array.getLength(array) * element + 7) / 8 * 8;
+    }
+}
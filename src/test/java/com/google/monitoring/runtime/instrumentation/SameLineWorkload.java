@@ -0,0 +1,14 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.function.IntFunction;
+
+/**
+ * Two allocations of one type on one line, after allocations of other kinds, for the coverage tests; loaded
+ * through {@link InstrumentingClassLoader}.
+ */
+public class SameLineWorkload implements IntFunction<Object> {
+    @Override
+    public Object apply(final int length) {
+        return new Object[]{new long[length], new int[length], new int[length]};
+    }
+}
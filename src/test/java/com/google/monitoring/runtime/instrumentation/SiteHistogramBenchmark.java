@@ -0,0 +1,55 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.recorders.SiteHistogramRecorder;
+import com.google.monitoring.runtime.instrumentation.sample.AllocationCountSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hook with the site histogram recorder, which counts every allocation, from one thread and
+ * from several threads allocating at the same site. Compare with AllocationRecorderBenchmark's not sampled
+ * path:
+ *
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="SiteHistogramBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SiteHistogramBenchmark {
+
+    private final Object newObj = new int[8];
+    private int site;
+
+    @Setup
+    public void setup(){
+        // Never consulted, the histogram recorder is given every allocation
+        AllocationRecorder.setSampleStrategy(new AllocationCountSampler(0, Long.MAX_VALUE / 2, 0));
+        AllocationRecorder.setRecorder(new SiteHistogramRecorder(-1, false));
+        site = AllocationSites.register("gen/Benchmark", "run", "()V", 0, 1, "int").getId();
+    }
+
+    @Benchmark
+    public void recordEvery(){
+        AllocationRecorder.recordAllocation(8, "int", newObj, site);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordEveryThreads4(){
+        AllocationRecorder.recordAllocation(8, "int", newObj, site);
+    }
+}
@@ -0,0 +1,98 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StaticClassWriterTest {
+
+    // Serves generated class files as resources and counts how often each one is read
+    private static class ResourceLoader extends ClassLoader {
+        final Map<String, byte[]> classes = new HashMap<>();
+        final Map<String, Integer> reads = new HashMap<>();
+
+        ResourceLoader() {
+            super(null);
+        }
+
+        void define(final String name, final String superName, final int access, final String... interfaces) {
+            final ClassWriter cw = new ClassWriter(0);
+            cw.visit(Opcodes.V1_8, access, name, null, superName, interfaces);
+            cw.visitEnd();
+            classes.put(name + ".class", cw.toByteArray());
+        }
+
+        @Override
+        public InputStream getResourceAsStream(final String name) {
+            final byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                return super.getResourceAsStream(name);
+            }
+            final Integer count = reads.get(name);
+            reads.put(name, count == null ? 1 : count + 1);
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    @Test
+    public void commonSuperClassFromResourcesTest() {
+        final ResourceLoader loader = new ResourceLoader();
+        loader.define("gen/I", "java/lang/Object", Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT);
+        loader.define("gen/Base", "java/lang/Object", Opcodes.ACC_PUBLIC);
+        loader.define("gen/A", "gen/Base", Opcodes.ACC_PUBLIC, "gen/I");
+        loader.define("gen/B", "gen/Base", Opcodes.ACC_PUBLIC);
+        loader.define("gen/C", "gen/A", Opcodes.ACC_PUBLIC);
+
+        final StaticClassWriter writer = writer(loader);
+        Assert.assertEquals("gen/Base", writer.getCommonSuperClass("gen/A", "gen/B"));
+        Assert.assertEquals("gen/Base", writer.getCommonSuperClass("gen/C", "gen/B"));
+        Assert.assertEquals("gen/A", writer.getCommonSuperClass("gen/A", "gen/C"));
+        Assert.assertEquals("gen/I", writer.getCommonSuperClass("gen/I", "gen/C"));
+        Assert.assertEquals("java/lang/Object", writer.getCommonSuperClass("gen/I", "gen/B"));
+    }
+
+    @Test
+    public void hierarchyIsReadOncePerLoaderTest() {
+        final ResourceLoader loader = new ResourceLoader();
+        loader.define("gen/Base", "java/lang/Object", Opcodes.ACC_PUBLIC);
+        loader.define("gen/A", "gen/Base", Opcodes.ACC_PUBLIC);
+        loader.define("gen/B", "gen/Base", Opcodes.ACC_PUBLIC);
+        loader.define("gen/C", "gen/B", Opcodes.ACC_PUBLIC);
+
+        for (int i = 0; i < 3; i++) {
+            // A writer per class being instrumented, as in AllocationInstrumenter
+            final StaticClassWriter writer = writer(loader);
+            Assert.assertEquals("gen/Base", writer.getCommonSuperClass("gen/A", "gen/B"));
+            Assert.assertEquals("gen/Base", writer.getCommonSuperClass("gen/C", "gen/A"));
+        }
+        for (Map.Entry<String, Integer> read : loader.reads.entrySet()) {
+            Assert.assertEquals(read.getKey(), 1, (int) read.getValue());
+        }
+    }
+
+    @Test
+    public void guessesAreNotCachedTest() {
+        final ResourceLoader loader = new ResourceLoader();
+        loader.define("gen/Base", "java/lang/Object", Opcodes.ACC_PUBLIC);
+        loader.define("gen/A", "gen/Base", Opcodes.ACC_PUBLIC);
+
+        // gen/Late can't be found yet, so it's taken to be like the class being written
+        Assert.assertEquals("java/lang/Object", writer(loader).getCommonSuperClass("gen/Late", "gen/A"));
+        loader.define("gen/Late", "gen/Base", Opcodes.ACC_PUBLIC);
+        Assert.assertEquals("gen/Base", writer(loader).getCommonSuperClass("gen/Late", "gen/A"));
+    }
+
+    private static StaticClassWriter writer(final ResourceLoader loader) {
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "gen/Written", null, "java/lang/Object", null);
+        cw.visitEnd();
+        return new StaticClassWriter(new ClassReader(cw.toByteArray()), ClassWriter.COMPUTE_FRAMES, loader);
+    }
+}
@@ -0,0 +1,180 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Instruments every class of a jar in turn, one class per operation, so the score is classes instrumented
+ * per second. The inputBytes and outputBytes counters are the bytes of class files read and written per
+ * second, and their ratio is how much instrumenting grows the classes. Run with -prof gc for the bytes
+ * allocated per class, gc.alloc.rate.norm:
+ *
+ *   mvn -Pjmh test-compile exec:exec -Djmh.args="TransformBenchmark -prof gc"
+ *
+ * The corpus is guava, asm or the path of any jar, such as a Java 8 rt.jar, given with -p corpus=. Classes
+ * newer than the ASM the agent is built with can read are left out.
+ *
+ * StaticClassWriter caches the class hierarchy per class loader. With cold=true each iteration, and each
+ * pass over the corpus within one, instruments against a new loader whose caches start empty, as an
+ * application's do when it starts; with cold=false the caches are warm after the first pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+    // The newest class file version ASM 5 reads, Java 8's
+    private static final int NEWEST_READABLE_VERSION = 52;
+
+    @Param({"guava", "asm"})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean cold;
+
+    private byte[][] classes;
+    private URL jarUrl;
+    private URLClassLoader loader;
+    private int next;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long inputBytes;
+        public long outputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            inputBytes = 0;
+            outputBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final File jar = jarOf(corpus);
+        final List<byte[]> read = jarClasses(jar);
+        jarUrl = jar.toURI().toURL();
+        final List<byte[]> readable = new ArrayList<>();
+        for (byte[] bytes : read) {
+            if (version(bytes) <= NEWEST_READABLE_VERSION) {
+                readable.add(bytes);
+            }
+        }
+        if (readable.isEmpty()) {
+            throw new IllegalStateException("No classes in " + corpus + " that ASM can read");
+        }
+        System.out.println(corpus + ": " + readable.size() + " classes, " + (read.size() - readable.size()) +
+                " too new to instrument");
+        classes = readable.toArray(new byte[0][]);
+        newLoader();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        if (cold) {
+            newLoader();
+            next = 0;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loader.close();
+    }
+
+    @Benchmark
+    public byte[] instrument(final Sizes sizes) throws IOException {
+        if (next == classes.length) {
+            next = 0;
+            if (cold) {
+                newLoader();
+            }
+        }
+        final byte[] original = classes[next++];
+        final byte[] instrumented = AllocationInstrumenter.instrument(original, loader);
+        sizes.inputBytes += original.length;
+        sizes.outputBytes += instrumented.length;
+        return instrumented;
+    }
+
+    // The hierarchy StaticClassWriter needs comes from the jar itself, as it would in an application
+    private void newLoader() throws IOException {
+        if (loader != null) {
+            loader.close();
+        }
+        loader = new URLClassLoader(new URL[]{jarUrl}, null);
+    }
+
+    private static File jarOf(final String corpus) {
+        final Class<?> from;
+        if (corpus.equals("guava")) {
+            from = com.google.common.collect.ImmutableList.class;
+        } else if (corpus.equals("asm")) {
+            from = ClassReader.class;
+        } else {
+            return new File(corpus);
+        }
+        return new File(from.getProtectionDomain().getCodeSource().getLocation().getPath());
+    }
+
+    // Major version, from the class file header
+    private static int version(final byte[] bytes) {
+        return ((bytes[6] & 0xFF) << 8) | (bytes[7] & 0xFF);
+    }
+
+    private static List<byte[]> jarClasses(final File jar) throws IOException {
+        final List<byte[]> classes = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        classes.add(readFully(in));
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,22 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+public class AllocationKindTest {
+
+    @Test
+    public void parseTest() {
+        Assert.assertEquals(AllocationKind.DEFAULT_COVERAGE, AllocationKind.parse("int, multiArray,reflection"));
+        Assert.assertEquals(EnumSet.allOf(AllocationKind.class), AllocationKind.parse("all"));
+        Assert.assertEquals(EnumSet.noneOf(AllocationKind.class), AllocationKind.parse(""));
+        Assert.assertEquals(EnumSet.of(AllocationKind.OBJECT_ARRAY, AllocationKind.NEW), AllocationKind.parse("new,objectArray"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownKindTest() {
+        AllocationKind.parse("int,string");
+    }
+}
@@ -0,0 +1,75 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+public class EscapeAnalyzerTest {
+    private static Object sink;
+
+    @After
+    public void tearDown() {
+        EscapeAnalyzer.stopTraining();
+    }
+
+    @Test
+    public void measuresAllocationsTest() throws IOException {
+        EscapeAnalyzer.train(2);
+        final AllocationSite allocating = AllocationSites.register("gen/Escape", "allocating", "()V", 0, 1, "long");
+        final AllocationSite empty = AllocationSites.register("gen/Escape", "empty", "()V", 0, 2, "int");
+        final AllocationSite outer = AllocationSites.register("gen/Escape", "outer", "()V", 0, 3, "java/lang/Object");
+        for (int i = 0; i < 2; i++) {
+            EscapeAnalyzer.start();
+            sink = new long[64];
+            EscapeAnalyzer.stop(allocating.getId());
+
+            EscapeAnalyzer.start();
+            EscapeAnalyzer.stop(empty.getId());
+
+            // The readings taken for the nested site don't count against the outer one
+            EscapeAnalyzer.start();
+            EscapeAnalyzer.start();
+            EscapeAnalyzer.stop(empty.getId());
+            EscapeAnalyzer.stop(outer.getId());
+        }
+        Assert.assertEquals(2, EscapeAnalyzer.measured(allocating.getId()));
+        Assert.assertEquals(0, EscapeAnalyzer.elided(allocating.getId()));
+        Assert.assertEquals(4, EscapeAnalyzer.elided(empty.getId()));
+        Assert.assertEquals(2, EscapeAnalyzer.elided(outer.getId()));
+
+        final Set<String> skip = EscapeAnalyzer.nonEscapingSites();
+        Assert.assertFalse(skip.contains(allocating.getKey()));
+        Assert.assertTrue(skip.contains(empty.getKey()));
+        Assert.assertTrue(skip.contains(outer.getKey()));
+
+        final File file = File.createTempFile("skip", ".txt");
+        try {
+            EscapeAnalyzer.finishTraining(file.getPath());
+            Assert.assertFalse(EscapeAnalyzer.isTraining());
+            Assert.assertEquals(skip, EscapeAnalyzer.readSkipList(file.getPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void allocationBreaksRunTest() {
+        EscapeAnalyzer.train(2);
+        final AllocationSite site = AllocationSites.register("gen/Escape", "sometimes", "()V", 0, 4, "long");
+        EscapeAnalyzer.start();
+        EscapeAnalyzer.stop(site.getId());
+        EscapeAnalyzer.start();
+        EscapeAnalyzer.stop(site.getId());
+        EscapeAnalyzer.start();
+        sink = new long[8];
+        EscapeAnalyzer.stop(site.getId());
+        Assert.assertEquals(2, EscapeAnalyzer.elided(site.getId()));
+        Assert.assertFalse(EscapeAnalyzer.nonEscapingSites().contains(site.getKey()));
+    }
+}
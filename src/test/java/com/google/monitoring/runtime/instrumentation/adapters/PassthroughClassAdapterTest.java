@@ -0,0 +1,62 @@
+package com.google.monitoring.runtime.instrumentation.adapters;
+
+import com.google.monitoring.runtime.instrumentation.AllocationInstrumenter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PassthroughClassAdapterTest {
+
+    @Test
+    public void onlyMethodsWithSitesAreRewrittenTest() {
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "gen/Sites", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "allocates", "()[I", null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+        mv.visitInsn(Opcodes.ARETURN);
+        // More than the method needs, so a recomputed method can be told from a copied one
+        mv.visitMaxs(10, 10);
+        mv.visitEnd();
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "plain", "()I", null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(10, 10);
+        mv.visitEnd();
+        cw.visitEnd();
+        final byte[] original = cw.toByteArray();
+
+        final AllocationSiteScanner sites = AllocationSiteScanner.scan(new ClassReader(original),
+                InstrumentationOptions.recordingWith("gen/Recorder", "record"));
+        Assert.assertTrue(sites.hasSites());
+        Assert.assertTrue(sites.hasSites("allocates", "()[I"));
+        Assert.assertFalse(sites.hasSites("plain", "()I"));
+
+        final byte[] instrumented = AllocationInstrumenter.instrument(original, "gen/Recorder", "record",
+                getClass().getClassLoader());
+        final Map<String, Integer> maxStacks = new HashMap<>();
+        new ClassReader(instrumented).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String desc,
+                                             final String signature, final String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitMaxs(final int maxStack, final int maxLocals) {
+                        maxStacks.put(name, maxStack);
+                    }
+                };
+            }
+        }, 0);
+        Assert.assertNotEquals(10, (int) maxStacks.get("allocates"));
+        Assert.assertEquals(10, (int) maxStacks.get("plain"));
+    }
+}
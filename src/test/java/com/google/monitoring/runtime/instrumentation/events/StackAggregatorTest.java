@@ -0,0 +1,39 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+public class StackAggregatorTest {
+
+    private static StackTraceElement frame(final String method){
+        return new StackTraceElement("com.example.Foo", method, "Foo.java", 1);
+    }
+
+    @Test
+    public void sumsByStackAndTypeTest() throws IOException {
+        final StackTable table = new StackTable();
+        final int ab = table.intern(new StackTraceElement[]{frame("b"), frame("a")});
+        final int ac = table.intern(new StackTraceElement[]{frame("c"), frame("a")});
+
+        final StackAggregator aggregator = new StackAggregator();
+        aggregator.add(new AllocationEvent(10, ab, "int"));
+        aggregator.add(new AllocationEvent(20, ab, "int"));
+        aggregator.add(new AllocationEvent(5, ab, "long"));
+        aggregator.add(new AllocationEvent(7, ac, "int"));
+        Assert.assertEquals(3, aggregator.size());
+
+        final StringWriter writer = new StringWriter();
+        aggregator.writeTo(new EventFormatter(table, EventParser.VerbosityLevel.METHOD_NAME,
+                EventParser.OutputFormat.COLLAPSED), writer);
+        final String[] lines = writer.toString().split("\n");
+        Arrays.sort(lines);
+        Assert.assertArrayEquals(new String[]{"a;b;int 30", "a;b;long 5", "a;c;int 7"}, lines);
+
+        aggregator.clear();
+        Assert.assertEquals(0, aggregator.size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.google.monitoring.runtime.instrumentation.events;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class StackTableTest {
+
+    private static StackTraceElement frame(final String method){
+        return new StackTraceElement("com.example.Foo", method, "Foo.java", 1);
+    }
+
+    @Test
+    public void internSharesPrefixesTest(){
+        final StackTable table = new StackTable();
+        // Innermost frame first, like Thread.getStackTrace()
+        final int abc = table.intern(new StackTraceElement[]{frame("c"), frame("b"), frame("a")});
+        final int abd = table.intern(new StackTraceElement[]{frame("d"), frame("b"), frame("a")});
+        final int ab = table.intern(new StackTraceElement[]{frame("b"), frame("a")});
+
+        Assert.assertEquals(abc, table.intern(new StackTraceElement[]{frame("c"), frame("b"), frame("a")}));
+        Assert.assertNotEquals(abc, abd);
+        Assert.assertEquals(4, table.frameCount());
+        // The empty root plus a, b, c and d
+        Assert.assertEquals(5, table.stackCount());
+
+        final int[] frameIds = table.frameIds(abd);
+        Assert.assertEquals(3, frameIds.length);
+        Assert.assertEquals("a", table.frame(frameIds[0]).getMethodName());
+        Assert.assertEquals("d", table.frame(frameIds[2]).getMethodName());
+        Assert.assertArrayEquals(new int[]{frameIds[0], frameIds[1]}, table.frameIds(ab));
+    }
+
+    @Test
+    public void internTruncatesAtInstrumentationTest(){
+        final StackTable table = new StackTable();
+        final int id = table.intern(new StackTraceElement[]{
+                frame("inner"),
+                new StackTraceElement("com.google.monitoring.runtime.instrumentation.AllocationRecorder", "recordAllocation", null, 1),
+                frame("outer")});
+        Assert.assertEquals(1, table.frameIds(id).length);
+        Assert.assertEquals("outer", table.frame(table.frameIds(id)[0]).getMethodName());
+        Assert.assertEquals(StackTable.EMPTY_STACK, table.intern(new StackTraceElement[0]));
+    }
+
+    @Test
+    public void concurrentInternTest() throws InterruptedException {
+        final StackTable table = new StackTable();
+        final int threads = 4;
+        final int stacks = 200;
+        final AtomicIntegerArray ids = new AtomicIntegerArray(threads * stacks);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++){
+            final int thread = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < stacks; i++){
+                        ids.set(thread * stacks + i, table.intern(
+                                new StackTraceElement[]{frame("m" + i), frame("m" + (i % 10)), frame("main")}));
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers){
+            worker.join();
+        }
+
+        for (int i = 0; i < stacks; i++){
+            for (int t = 1; t < threads; t++){
+                Assert.assertEquals(ids.get(i), ids.get(t * stacks + i));
+            }
+        }
+        Assert.assertEquals(stacks + 1, table.frameCount());
+    }
+
+    @Test
+    public void internedFormatTest() throws IOException {
+        final StackTable table = new StackTable();
+        final int id = table.intern(new StackTraceElement[]{frame("b"), frame("a")});
+        final EventFormatter formatter = new EventFormatter(table,
+                EventParser.VerbosityLevel.METHOD_NAME, EventParser.OutputFormat.INTERNED);
+
+        final StringWriter writer = new StringWriter();
+        formatter.write(new AllocationEvent(24, id, "int"), writer);
+        formatter.write(new AllocationEvent(16, id, "int"), writer);
+        Assert.assertEquals("#f 0 a\n#f 1 b\n#s 2 0;1\n@2 int 24\n@2 int 16\n", writer.toString());
+
+        final StringWriter text = new StringWriter();
+        new EventFormatter(table, EventParser.VerbosityLevel.METHOD_NAME, EventParser.OutputFormat.TEXT)
+                .write(new AllocationEvent(24, id, "int"), text);
+        Assert.assertEquals("a;b;int 24\n", text.toString());
+    }
+}
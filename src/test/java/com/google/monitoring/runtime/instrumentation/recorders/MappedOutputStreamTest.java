@@ -0,0 +1,34 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class MappedOutputStreamTest {
+
+    @Test
+    public void rollsOverAndTruncatesTest() throws IOException {
+        final File file = File.createTempFile("mapped", ".out");
+        file.deleteOnExit();
+
+        final byte[] expected = new byte[100];
+        for (int i = 0; i < expected.length; i++){
+            expected[i] = (byte) (i + 1);
+        }
+
+        final MappedOutputStream out = new MappedOutputStream(file.getPath(), 16);
+        out.write(expected, 0, 40);
+        for (int i = 40; i < 50; i++){
+            out.write(expected[i]);
+        }
+        out.write(expected, 50, 50);
+
+        // Zero padded to the end of the current segment until it's closed
+        Assert.assertEquals(112, file.length());
+        out.close();
+        Assert.assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+}
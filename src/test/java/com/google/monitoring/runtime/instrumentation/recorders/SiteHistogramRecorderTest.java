@@ -0,0 +1,68 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import com.google.monitoring.runtime.instrumentation.AllocationSite;
+import com.google.monitoring.runtime.instrumentation.AllocationSites;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class SiteHistogramRecorderTest {
+
+    @Test
+    public void exactCountsFromThreadsTest() throws InterruptedException {
+        final SiteHistogramRecorder recorder = new SiteHistogramRecorder(-1, false);
+        final int site = AllocationSites.register("gen/Histogram", "run", "()V", 0, 1, "int").getId();
+        // Far enough from the registered sites to need a chunk of its own
+        final int distantSite = site + 5000;
+        final int perThread = 100_000;
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        recorder.record(8, "int", null, site);
+                        recorder.record(8, "int", null, distantSite);
+                        recorder.record(-1, "java/lang/Object", null);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length * perThread, recorder.count(site));
+        Assert.assertEquals(threads.length * perThread, recorder.count(distantSite));
+        Assert.assertEquals(threads.length * perThread, recorder.count(AllocationSite.UNKNOWN));
+        Assert.assertEquals(0, recorder.count(site + 1));
+        // The chunks between the two sites' are never allocated
+        Assert.assertEquals(0, recorder.count(site + 2500));
+        Assert.assertEquals(0, recorder.bytes(site));
+    }
+
+    @Test
+    public void printerThreadIsIgnoredTest() {
+        final SiteHistogramRecorder recorder = new SiteHistogramRecorder(Thread.currentThread().getId(), false);
+        recorder.record(8, "int", null, 0);
+        Assert.assertEquals(0, recorder.count(0));
+    }
+
+    @Test
+    public void writeToTest() throws IOException {
+        final SiteHistogramRecorder recorder = new SiteHistogramRecorder(-1, false);
+        final AllocationSite few = AllocationSites.register("gen/Histogram", "few", "()V", 0, 2, "int");
+        final AllocationSite many = AllocationSites.register("gen/Histogram", "many", "()V", 0, 3, null);
+        recorder.record(8, "int", null, few.getId());
+        for (int i = 0; i < 3; i++) {
+            recorder.record(-1, "java/lang/String", null, many.getId());
+        }
+        final StringWriter out = new StringWriter();
+        recorder.writeTo(out);
+        Assert.assertEquals("# count bytes site\n" +
+                "3 0 gen/Histogram.many()V#0:3 ?\n" +
+                "1 0 gen/Histogram.few()V#0:2 int\n", out.toString());
+    }
+}
@@ -0,0 +1,32 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StackCaptureTest {
+
+    @Test
+    public void skipListTest() {
+        final FrameFilter filter = FrameFilter.parse(" sun.reflect., *$$Lambda ,,*");
+        Assert.assertTrue(filter.test("sun.reflect.GeneratedMethodAccessor12"));
+        Assert.assertTrue(filter.test("com.example.Service$$Lambda$14/0x0000000800c0b000"));
+        Assert.assertFalse(filter.test("com.example.Service"));
+        Assert.assertFalse(filter.test("jdk.sun.reflect.Other"));
+        Assert.assertFalse(FrameFilter.NONE.test("sun.reflect.GeneratedMethodAccessor12"));
+    }
+
+    @Test
+    public void boundedCaptureTest() {
+        // The test's own frames are in the agent package, so the stack starts where JUnit called it, by reflection
+        final FrameFilter reflection = FrameFilter.parse("sun.reflect.,jdk.internal.reflect.,java.lang.reflect.");
+        final StackTraceElement[] all = StackCapture.capture(0, FrameFilter.NONE);
+        final StackTraceElement[] bounded = StackCapture.capture(3, reflection);
+        Assert.assertEquals(3, bounded.length);
+        Assert.assertTrue(all.length > bounded.length);
+        for (StackTraceElement frame : bounded) {
+            Assert.assertFalse(frame.toString(), reflection.test(frame.getClassName()));
+            Assert.assertFalse(frame.toString(), frame.getClassName().startsWith(StackCapture.AGENT_PACKAGE));
+        }
+        Assert.assertTrue(all[0].toString(), reflection.test(all[0].getClassName()));
+    }
+}
@@ -0,0 +1,114 @@
+package com.google.monitoring.runtime.instrumentation.recorders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ThreadRingBuffersTest {
+
+    @Test
+    public void drainInOrderTest(){
+        final ThreadRingBuffers<Integer> buffers = new ThreadRingBuffers<>(8);
+        for(int i = 0; i < 5; i++){
+            Assert.assertTrue(buffers.offer(i));
+        }
+
+        final List<Integer> drained = new ArrayList<>();
+        Assert.assertEquals(3, buffers.drainTo(drained, 3));
+        Assert.assertEquals(2, buffers.drainTo(drained, 10));
+        Assert.assertEquals(0, buffers.drainTo(drained, 10));
+        for(int i = 0; i < 5; i++){
+            Assert.assertEquals(i, (int) drained.get(i));
+        }
+    }
+
+    @Test
+    public void fullBufferDropsTest(){
+        final ThreadRingBuffers<Integer> buffers = new ThreadRingBuffers<>(4);
+        for(int i = 0; i < 4; i++){
+            Assert.assertTrue(buffers.offer(i));
+        }
+        Assert.assertFalse(buffers.offer(4));
+        Assert.assertFalse(buffers.offer(5));
+        Assert.assertEquals(2, buffers.dropped());
+
+        buffers.clear();
+        Assert.assertTrue(buffers.offer(6));
+        final List<Integer> drained = new ArrayList<>();
+        buffers.drainTo(drained, 10);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertEquals(6, (int) drained.get(0));
+    }
+
+    @Test
+    public void producerThreadsTest() throws InterruptedException {
+        final ThreadRingBuffers<Integer> buffers = new ThreadRingBuffers<>(1024);
+        final int perThread = 100_000;
+        final AtomicLong retries = new AtomicLong();
+        final Thread[] producers = new Thread[4];
+        for(int t = 0; t < producers.length; t++){
+            producers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perThread; i++){
+                        while (!buffers.offer(i)){
+                            retries.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producers[t].start();
+        }
+
+        // Events from each producer arrive in order and nothing is lost, whether or not its thread is still alive
+        final List<Integer> drained = new ArrayList<>();
+        long total = 0;
+        boolean running = true;
+        while (running || buffers.drainTo(drained, 512) > 0){
+            running = false;
+            for(Thread producer : producers){
+                running |= producer.isAlive();
+            }
+            buffers.drainTo(drained, 512);
+            for(Integer value : drained){
+                total += value;
+            }
+            drained.clear();
+        }
+        for(Integer value : drained){
+            total += value;
+        }
+        for(Thread producer : producers){
+            producer.join();
+        }
+        Assert.assertEquals(producers.length * ((long) perThread * (perThread - 1) / 2), total);
+        Assert.assertEquals(retries.get(), buffers.dropped());
+    }
+
+    @Test
+    public void offerWakesParkedConsumerTest() throws InterruptedException {
+        final ThreadRingBuffers<Integer> buffers = new ThreadRingBuffers<>(8);
+        final AtomicLong waited = new AtomicLong();
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                buffers.awaitEvents(30, TimeUnit.SECONDS);
+                waited.set(System.nanoTime() - start);
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        buffers.offer(1);
+        consumer.join(10000);
+
+        Assert.assertFalse(consumer.isAlive());
+        Assert.assertTrue(waited.get() < TimeUnit.SECONDS.toNanos(10));
+        Assert.assertFalse(buffers.isEmpty());
+    }
+}
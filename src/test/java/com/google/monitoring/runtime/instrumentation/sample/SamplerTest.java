@@ -24,6 +24,30 @@ public class SamplerTest {
         Assert.assertFalse(sampleStrategy.canSample());
     }
 
+    @Test
+    public void allocationCountPerThreadTest() throws InterruptedException {
+        final long pastTime = System.currentTimeMillis() - 10;
+        final SampleStrategy sampleStrategy = new AllocationCountSampler(pastTime, 2, 0);
+        Assert.assertTrue(sampleStrategy.canSample());
+        Assert.assertFalse(sampleStrategy.canSample());
+
+        // Every thread keeps its own countdown, including threads that start after sampling began
+        final boolean[] sampled = new boolean[2];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                sampled[0] = sampleStrategy.canSample();
+                sampled[1] = sampleStrategy.canSample();
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertTrue(sampled[0]);
+        Assert.assertFalse(sampled[1]);
+
+        Assert.assertTrue(sampleStrategy.canSample());
+    }
+
     @Test
     public void allocationCountNotStartedTest() throws InterruptedException {
         final long futureTime = System.currentTimeMillis() + 10;
@@ -31,6 +55,39 @@ public class SamplerTest {
         Assert.assertFalse(sampleStrategy.canSample());
     }
 
+    @Test
+    public void allocatedBytesEstimateTest(){
+        final long pastTime = System.currentTimeMillis() - 10;
+        final long objectSize = 1000;
+        final AllocatedBytesSampler sampleStrategy = new AllocatedBytesSampler(pastTime, 10_000) {
+            @Override
+            long sizeOf(final int count, final Object newObj) {
+                return objectSize;
+            }
+        };
+
+        final int allocations = 1_000_000;
+        long samples = 0;
+        long estimatedBytes = 0;
+        for(int i = 0; i < allocations; i++){
+            if (sampleStrategy.canSample()){
+                samples++;
+                estimatedBytes += sampleStrategy.weigh(objectSize);
+            }
+        }
+
+        // About one in ten 1000 byte allocations is sampled, and the weights add up to what was allocated
+        Assert.assertEquals(allocations * -Math.expm1(-0.1), samples, allocations * 0.005);
+        Assert.assertEquals(allocations * objectSize, estimatedBytes, allocations * objectSize * 0.02);
+    }
+
+    @Test
+    public void allocatedBytesNotStartedTest(){
+        final long futureTime = System.currentTimeMillis() + 1000;
+        final SampleStrategy sampleStrategy = new AllocatedBytesSampler(futureTime, 1);
+        Assert.assertFalse(sampleStrategy.canSample());
+    }
+
     @Test
     public void periodicBasicTest() throws InterruptedException {
         final long pastTime = System.currentTimeMillis() - 10;